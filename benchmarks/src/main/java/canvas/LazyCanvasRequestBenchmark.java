@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canvas;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares eager and lazy decoding for a page that only reads the client and the user id, and for one
+ * that reads every context section. Run with {@code -prof gc} to see the allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LazyCanvasRequestBenchmark {
+
+    @Param({"0", "20", "500"})
+    public int parameters;
+
+    private String signedRequest;
+    private SignedRequestVerifier verifier;
+
+    @Setup
+    public void setup() {
+        signedRequest = SignedRequests.create("HMACSHA256", parameters);
+        verifier = new SignedRequestVerifier(SignedRequests.SECRET);
+    }
+
+    @Benchmark
+    public void eagerClientOnly(Blackhole blackhole) {
+        readClient(verifier.verifyAndDecode(signedRequest), blackhole);
+    }
+
+    @Benchmark
+    public void lazyClientOnly(Blackhole blackhole) {
+        readClient(verifier.verifyAndDecodeLazily(signedRequest), blackhole);
+    }
+
+    @Benchmark
+    public void eagerFullContext(Blackhole blackhole) {
+        readContext(verifier.verifyAndDecode(signedRequest), blackhole);
+    }
+
+    @Benchmark
+    public void lazyFullContext(Blackhole blackhole) {
+        readContext(verifier.verifyAndDecodeLazily(signedRequest), blackhole);
+    }
+
+    private static void readClient(CanvasRequest request, Blackhole blackhole) {
+        blackhole.consume(request.getClient().getOAuthToken());
+        blackhole.consume(request.getUserId());
+    }
+
+    private static void readContext(CanvasRequest request, Blackhole blackhole) {
+        readClient(request, blackhole);
+        CanvasContext context = request.getContext();
+        blackhole.consume(context.getUserContext());
+        blackhole.consume(context.getOrganizationContext());
+        blackhole.consume(context.getEnvironmentContext());
+        blackhole.consume(context.getLinkContext());
+    }
+}
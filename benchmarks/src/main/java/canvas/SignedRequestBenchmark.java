@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canvas;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the signed request entry points used by the canvas landing pages. Run with {@code -prof gc}
+ * to get the allocation rate per operation alongside throughput and latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignedRequestBenchmark {
+
+    /**
+     * Number of entries in the environment parameters map, from a bare user context up to a large map.
+     */
+    @Param({"0", "20", "500"})
+    public int parameters;
+
+    @Param({"HMACSHA256", "HMACSHA1", "HMACSHA512"})
+    public String algorithm;
+
+    private String signedRequest;
+    private SignedRequestVerifier verifier;
+    private SignedRequestVerifier rewritingVerifier;
+
+    @Setup
+    public void setup() {
+        signedRequest = SignedRequests.create(algorithm, parameters);
+        verifier = new SignedRequestVerifier(SignedRequests.SECRET);
+        rewritingVerifier = new SignedRequestVerifier(SignedRequests.SECRET);
+        rewritingVerifier.setJsonMode(SignedRequestVerifier.JsonMode.REWRITE);
+    }
+
+    @Benchmark
+    public CanvasRequest verifyAndDecode() {
+        return SignedRequest.verifyAndDecode(signedRequest, SignedRequests.SECRET);
+    }
+
+    @Benchmark
+    public String verifyAndDecodeAsJson() {
+        return SignedRequest.verifyAndDecodeAsJson(signedRequest, SignedRequests.SECRET);
+    }
+
+    @Benchmark
+    public CanvasRequest verifierVerifyAndDecode() {
+        return verifier.verifyAndDecode(signedRequest);
+    }
+
+    /**
+     * The JSON entry point as it worked before the envelope was returned as signed, for comparison.
+     */
+    @Benchmark
+    public String verifyAndDecodeAsJsonRewrite() {
+        return rewritingVerifier.verifyAndDecodeAsJson(signedRequest);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canvas;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.binary.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds signed requests shaped like the ones Salesforce posts to a canvas app, for use by the benchmarks.
+ */
+public final class SignedRequests {
+
+    public static final String SECRET = "1818663124211010887";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private SignedRequests() {
+    }
+
+    /**
+     * @param algorithm the algorithm name as Salesforce puts it in the envelope, e.g. HMACSHA256.
+     * @param parameters the number of entries in the environment parameters map.
+     */
+    public static String create(String algorithm, int parameters) {
+        try {
+            String envelope = Base64.encodeBase64URLSafeString(MAPPER.writeValueAsBytes(envelope(algorithm, parameters)));
+            Mac mac = Mac.getInstance(algorithm);
+            mac.init(new SecretKeySpec(SECRET.getBytes(), algorithm));
+            String signature = Base64.encodeBase64URLSafeString(mac.doFinal(envelope.getBytes("US-ASCII")));
+            return signature + "." + envelope;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<String, Object> envelope(String algorithm, int parameters) {
+        String instance = "https://na1.salesforce.com";
+        String api = "/services/data/v59.0";
+
+        Map<String, Object> user = new LinkedHashMap<String, Object>();
+        user.put("userId", "005x0000001234AAA");
+        user.put("userName", "admin@example.com");
+        user.put("firstName", "Jane");
+        user.put("lastName", "Doe");
+        user.put("email", "admin@example.com");
+        user.put("fullName", "Jane Doe");
+        user.put("locale", "en_US");
+        user.put("language", "en_US");
+        user.put("timeZone", "America/Los_Angeles");
+        user.put("profileId", "00ex0000000jzpt");
+        user.put("roleId", null);
+        user.put("userType", "STANDARD");
+        user.put("currencyISOCode", "USD");
+        user.put("accessibilityModeEnabled", false);
+        user.put("profilePhotoUrl", instance + "/profilephoto/005/F");
+        user.put("profileThumbnailUrl", instance + "/profilephoto/005/T");
+
+        Map<String, Object> organization = new LinkedHashMap<String, Object>();
+        organization.put("organizationId", "00Dx00000001hxyEAA");
+        organization.put("name", "Example, Inc.");
+        organization.put("multicurrencyEnabled", false);
+        organization.put("currencyIsoCode", "USD");
+
+        Map<String, Object> dimensions = new LinkedHashMap<String, Object>();
+        dimensions.put("width", "800px");
+        dimensions.put("height", "900px");
+
+        Map<String, Object> version = new LinkedHashMap<String, Object>();
+        version.put("api", "59.0");
+        version.put("season", "WINTER");
+
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < parameters; i++) {
+            params.put("param" + i, "value-" + i + "-" + Integer.toHexString(i * 7919));
+        }
+
+        Map<String, Object> environment = new LinkedHashMap<String, Object>();
+        environment.put("locationUrl", instance + "/apex/CanvasPage");
+        environment.put("uiTheme", "Theme3");
+        environment.put("dimensions", dimensions);
+        environment.put("version", version);
+        environment.put("parameters", params);
+
+        Map<String, Object> links = new LinkedHashMap<String, Object>();
+        links.put("enterpriseUrl", "/services/Soap/c/59.0/00Dx00000001hxy");
+        links.put("metadataUrl", "/services/Soap/m/59.0/00Dx00000001hxy");
+        links.put("partnerUrl", "/services/Soap/u/59.0/00Dx00000001hxy");
+        links.put("restUrl", api + "/");
+        links.put("sobjectUrl", api + "/sobjects/");
+        links.put("searchUrl", api + "/search/");
+        links.put("queryUrl", api + "/query/");
+        links.put("recentItemsUrl", api + "/recent/");
+        links.put("userUrl", "/005x0000001234AAA");
+        links.put("chatterFeedsUrl", api + "/chatter/feeds");
+        links.put("chatterGroupsUrl", api + "/chatter/groups");
+        links.put("chatterUsersUrl", api + "/chatter/users");
+        links.put("chatterFeedItemsUrl", api + "/chatter/feed-items");
+
+        Map<String, Object> context = new LinkedHashMap<String, Object>();
+        context.put("user", user);
+        context.put("organization", organization);
+        context.put("environment", environment);
+        context.put("links", links);
+
+        Map<String, Object> client = new LinkedHashMap<String, Object>();
+        client.put("oauthToken", "00Dx00000001hxy!AQcAQH0dMHZfz972Szmpkb58urFRkgeBGsxL_QJWwYMfAbUeeG7c1E6LYUfiDUkWe6H34r1AAwOR8B8fLEz6n04NPGRrq0FM");
+        client.put("clientId", "3MVG9lKcPoNINVBIPJjdw1J9LLM82HnFVVX19KY1uA5mu0QqEWhqKpoW3svG3XHrXDiCQjK1mdgAvhCscA9GE");
+        client.put("instanceId", "_:canvasapp:j_id0:j_id1");
+        client.put("targetOrigin", instance);
+        client.put("instanceUrl", instance);
+
+        Map<String, Object> request = new LinkedHashMap<String, Object>();
+        request.put("context", context);
+        request.put("client", client);
+        request.put("algorithm", algorithm);
+        request.put("userId", "005x0000001234AAA");
+        request.put("issuedAt", null);
+        return request;
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package servlets;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Executor;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.StandardThreadExecutor;
+import org.apache.catalina.core.StandardVirtualThreadExecutor;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.compat.JreCompat;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test for the executors {@code Main} can run Tomcat's connectors on. The blocking {@link ProxyServlet}
+ * holds the thread serving a request for the whole upstream call, so on a pool of platform threads the
+ * number of calls in flight, and with it throughput, is capped at the pool size. On virtual threads it is
+ * only capped by the proxy's upstream connection pool. The test reports the throughput, the latency
+ * percentiles and the most calls the upstream saw at once for a bounded pool and, on Java 21 and later, for
+ * virtual threads.
+ * <p>
+ * The proxy keeps its default connection pool (max_connections_per_host 20) unless a number of upstream
+ * connections is given, in which case both max_connections_per_host and max_total_connections are set to it.
+ * Left at the default, the connection pool rather than the executor is the cap for both modes, and requests
+ * that wait longer than connection_wait_timeout for a connection are answered with a 503.
+ * <p>
+ * Run it from the benchmarks jar:
+ * <pre>
+ *     java -cp target/benchmarks.jar servlets.ExecutorLoadTest [clients] [requests] [upstream delay ms] [pool threads] [upstream connections]
+ * </pre>
+ */
+public class ExecutorLoadTest {
+
+    private static final int UPSTREAM_PORT = 9231;
+    private static final int PROXY_PORT    = 9230;
+
+    public static void main(String[] args) throws Exception {
+        int clients  = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 6000;
+        long delay   = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        int threads  = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        int connections = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        CountingUpstream upstreamServlet = new CountingUpstream(timer, delay);
+        Tomcat upstream = new Tomcat();
+        Context upstreamContext = ProxyLoadTest.addContext(upstream, UPSTREAM_PORT, 200);
+        ProxyLoadTest.addServlet(upstreamContext, "upstream", upstreamServlet, "/*").setAsyncSupported(true);
+        upstream.start();
+
+        System.out.println(String.format("%d clients, %d requests, %dms upstream delay, %d pool threads, %s",
+                clients, requests, delay, threads,
+                connections > 0 ? connections + " upstream connections" : "default upstream connections"));
+        for (String mode : Arrays.asList("pool", "virtual")) {
+            if (mode.equals("virtual") && !JreCompat.isJre21Available()) {
+                System.out.println(String.format("%-8s skipped, virtual threads need Java 21 or later", mode));
+                continue;
+            }
+            Tomcat proxy = new Tomcat();
+            Context context = ProxyLoadTest.addContext(proxy, PROXY_PORT, threads);
+            Executor executor;
+            if (mode.equals("virtual")) {
+                StandardVirtualThreadExecutor virtual = new StandardVirtualThreadExecutor();
+                virtual.setName("virtual");
+                executor = virtual;
+            } else {
+                StandardThreadExecutor pool = new StandardThreadExecutor();
+                pool.setName("pool");
+                pool.setMaxThreads(threads);
+                executor = pool;
+            }
+            // Installed the way Main installs it.
+            proxy.getService().addExecutor(executor);
+            for (Connector connector : proxy.getService().findConnectors()) {
+                connector.getProtocolHandler().setExecutor(executor);
+            }
+            Wrapper wrapper = ProxyLoadTest.addServlet(context, "proxy", new ProxyServlet(), "/*");
+            wrapper.addInitParameter("remote_host", "http://localhost:" + UPSTREAM_PORT);
+            if (connections > 0) {
+                wrapper.addInitParameter("max_connections_per_host", String.valueOf(connections));
+                wrapper.addInitParameter("max_total_connections", String.valueOf(connections));
+            }
+            proxy.start();
+
+            // Warm up connections and code paths before measuring.
+            run(mode, clients, Math.min(requests, clients * 2), upstreamServlet);
+            System.out.println(run(mode, clients, requests, upstreamServlet));
+            proxy.stop();
+            proxy.destroy();
+        }
+
+        timer.shutdownNow();
+        upstream.stop();
+    }
+
+    private static String run(String mode, int clients, int requests, CountingUpstream upstream) throws Exception {
+        final String url = "http://localhost:" + PROXY_PORT + "/services/data/v59.0/sobjects";
+        upstream.peak.set(0);
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<long[]>> results = new ArrayList<Future<long[]>>(requests);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            results.add(pool.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    long begin = System.nanoTime();
+                    int status = ProxyLoadTest.get(url);
+                    return new long[] {System.nanoTime() - begin, status};
+                }
+            }));
+        }
+        long[] latencies = new long[requests];
+        int errors = 0;
+        for (int i = 0; i < requests; i++) {
+            long[] result = results.get(i).get();
+            latencies[i] = result[0];
+            if (result[1] != HttpServletResponse.SC_OK) {
+                errors++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        Arrays.sort(latencies);
+        return String.format("%-8s %8.0f req/s  p50 %5dms  p99 %5dms  peak upstream calls %4d  errors %d",
+                mode, requests / (elapsed / 1e9),
+                TimeUnit.NANOSECONDS.toMillis(latencies[requests / 2]),
+                TimeUnit.NANOSECONDS.toMillis(latencies[(int) (requests * 0.99)]),
+                upstream.peak.get(), errors);
+    }
+
+    /**
+     * The slow upstream, keeping track of the most calls it was answering at once.
+     */
+    static class CountingUpstream extends ProxyLoadTest.SlowUpstream {
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+
+        CountingUpstream(ScheduledExecutorService timer, long delay) {
+            super(timer, delay);
+        }
+
+        @Override
+        protected void service(HttpServletRequest request, HttpServletResponse response) {
+            int now = inFlight.incrementAndGet();
+            int seen;
+            while (now > (seen = peak.get()) && !peak.compareAndSet(seen, now)) {
+                // Raced with another call; look again.
+            }
+            super.service(request, response);
+            request.getAsyncContext().addListener(new AsyncListener() {
+                @Override
+                public void onComplete(AsyncEvent event) {
+                    inFlight.decrementAndGet();
+                }
+
+                @Override
+                public void onTimeout(AsyncEvent event) {
+                }
+
+                @Override
+                public void onError(AsyncEvent event) {
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+        }
+    }
+}
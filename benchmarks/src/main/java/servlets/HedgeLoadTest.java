@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test for hedged upstream calls. Two upstream hosts answer most requests quickly and a few of them
+ * slowly, and the proxy runs in both modes with hedging off and on. Hedging should cut the tail latency to
+ * not much more than the hedging delay while sending only a few percent more upstream calls.
+ * <p>
+ * Run it from the benchmarks jar:
+ * <pre>
+ *     java -cp target/benchmarks.jar servlets.HedgeLoadTest [clients] [requests] [fast ms] [slow ms] [slow %]
+ * </pre>
+ */
+public class HedgeLoadTest {
+
+    private static final int[] UPSTREAM_PORTS = {9211, 9212};
+    private static final int PROXY_PORT       = 9210;
+
+    public static void main(String[] args) throws Exception {
+        int clients  = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+        long fast    = args.length > 2 ? Long.parseLong(args[2]) : 5;
+        long slow    = args.length > 3 ? Long.parseLong(args[3]) : 300;
+        int slowPct  = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        SometimesSlowUpstream upstreamServlet = new SometimesSlowUpstream(timer, fast, slow, slowPct);
+        List<Tomcat> upstreams = new ArrayList<Tomcat>();
+        StringBuilder remoteHost = new StringBuilder();
+        for (int port : UPSTREAM_PORTS) {
+            Tomcat upstream = new Tomcat();
+            Context context = ProxyLoadTest.addContext(upstream, port, 200);
+            ProxyLoadTest.addServlet(context, "upstream", upstreamServlet, "/*").setAsyncSupported(true);
+            upstream.start();
+            upstreams.add(upstream);
+            remoteHost.append(remoteHost.length() == 0 ? "" : ",").append("http://localhost:").append(port);
+        }
+
+        Tomcat proxy = new Tomcat();
+        Context proxyContext = ProxyLoadTest.addContext(proxy, PROXY_PORT, 200);
+        List<String> modes = Arrays.asList("blocking", "blocking-hedged", "async", "async-hedged");
+        for (String mode : modes) {
+            Wrapper wrapper = ProxyLoadTest.addServlet(proxyContext, mode, new ProxyServlet(), "/" + mode + "/*");
+            wrapper.addInitParameter("remote_host", remoteHost.toString());
+            wrapper.addInitParameter("async", String.valueOf(mode.startsWith("async")));
+            wrapper.addInitParameter("hedge", String.valueOf(mode.endsWith("hedged")));
+            wrapper.setAsyncSupported(true);
+        }
+        proxy.start();
+
+        System.out.println(String.format("%d clients, %d requests, %dms upstream, %d%% of calls take %dms",
+                clients, requests, fast, slowPct, slow));
+        for (String mode : modes) {
+            // Warm up connections and fill the latency window the hedging delay is taken from.
+            run(mode, clients, Math.min(requests, 500));
+            upstreamServlet.calls.set(0);
+            String result = run(mode, clients, requests);
+            System.out.println(String.format("%s  upstream calls %d", result, upstreamServlet.calls.get()));
+        }
+
+        proxy.stop();
+        timer.shutdownNow();
+        for (Tomcat upstream : upstreams) {
+            upstream.stop();
+        }
+    }
+
+    private static String run(final String mode, int clients, int requests) throws Exception {
+        final String url = "http://localhost:" + PROXY_PORT + "/" + mode + "/services/data/v59.0/sobjects";
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<long[]>> results = new ArrayList<Future<long[]>>(requests);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            results.add(pool.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    long begin = System.nanoTime();
+                    int status = ProxyLoadTest.get(url);
+                    return new long[] {System.nanoTime() - begin, status};
+                }
+            }));
+        }
+        long[] latencies = new long[requests];
+        int errors = 0;
+        for (int i = 0; i < requests; i++) {
+            long[] result = results.get(i).get();
+            latencies[i] = result[0];
+            if (result[1] != HttpServletResponse.SC_OK) {
+                errors++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        Arrays.sort(latencies);
+        return String.format("%-16s %7.0f req/s  p50 %4dms  p99 %4dms  p99.9 %4dms  errors %d",
+                mode, requests / (elapsed / 1e9),
+                TimeUnit.NANOSECONDS.toMillis(latencies[requests / 2]),
+                TimeUnit.NANOSECONDS.toMillis(latencies[(int) (requests * 0.99)]),
+                TimeUnit.NANOSECONDS.toMillis(latencies[(int) (requests * 0.999)]),
+                errors);
+    }
+
+    /**
+     * Answers after a short delay, or now and then after a long one, without holding a container thread
+     * meanwhile.
+     */
+    static class SometimesSlowUpstream extends HttpServlet {
+
+        private final ScheduledExecutorService timer;
+        private final long fast;
+        private final long slow;
+        private final int slowPct;
+        final AtomicInteger calls = new AtomicInteger();
+
+        SometimesSlowUpstream(ScheduledExecutorService timer, long fast, long slow, int slowPct) {
+            this.timer = timer;
+            this.fast = fast;
+            this.slow = slow;
+            this.slowPct = slowPct;
+        }
+
+        @Override
+        protected void service(HttpServletRequest request, HttpServletResponse response) {
+            calls.incrementAndGet();
+            final AsyncContext context = request.startAsync();
+            long delay = ThreadLocalRandom.current().nextInt(100) < slowPct ? slow : fast;
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HttpServletResponse response = (HttpServletResponse) context.getResponse();
+                        response.setContentType("application/json;charset=UTF-8");
+                        response.getWriter().write("{\"totalSize\":1,\"done\":true,\"records\":[]}");
+                    } catch (IOException e) {
+                        // The client went away.
+                    }
+                    context.complete();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proxies multi-megabyte POST and PATCH bodies to an upstream that echoes them back, so both the request
+ * and the response copy are measured. {@code pooled} is the proxy as it ships; {@code byte} forwards the
+ * request body one byte at a time, the way the proxy used to. Multiply the operations per second by the
+ * body size for the throughput in bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class ProxyBodyBenchmark {
+
+    private static final int UPSTREAM_PORT = 9211;
+    private static final int PROXY_PORT    = 9210;
+
+    @Param({"1048576", "8388608"})
+    public int size;
+
+    @Param({"pooled", "byte"})
+    public String copy;
+
+    private Tomcat upstream;
+    private Tomcat proxy;
+    private CloseableHttpClient client;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        upstream = start(UPSTREAM_PORT, new Echo(), null);
+        ProxyServlet servlet = copy.equals("byte") ? new ByteAtATimeProxyServlet() : new ProxyServlet();
+        proxy = start(PROXY_PORT, servlet, "http://localhost:" + UPSTREAM_PORT);
+
+        client = HttpClients.custom().setMaxConnPerRoute(16).setMaxConnTotal(16).build();
+
+        body = new byte[size];
+        new Random(42).nextBytes(body);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        proxy.stop();
+        upstream.stop();
+    }
+
+    @Benchmark
+    public long post() throws IOException {
+        return send(new HttpPost(url()));
+    }
+
+    @Benchmark
+    public long patch() throws IOException {
+        return send(new HttpPatch(url()));
+    }
+
+    private String url() {
+        return "http://localhost:" + PROXY_PORT + "/services/data/v59.0/sobjects/ContentVersion";
+    }
+
+    private long send(HttpEntityEnclosingRequestBase method) throws IOException {
+        method.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_OCTET_STREAM));
+        CloseableHttpResponse response = client.execute(method);
+        try {
+            InputStream in = response.getEntity().getContent();
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                total += len;
+            }
+            if (total != size) {
+                throw new IllegalStateException(String.format("Expected %d bytes back, got %d", size, total));
+            }
+            return total;
+        } finally {
+            response.close();
+        }
+    }
+
+    private static Tomcat start(int port, HttpServlet servlet, String remoteHost) throws Exception {
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createTempDirectory("tomcat").toString());
+        Connector connector = new Connector("HTTP/1.1");
+        connector.setPort(port);
+        tomcat.getService().addConnector(connector);
+        tomcat.setConnector(connector);
+        Context context = tomcat.addContext("", new File(".").getAbsolutePath());
+        Wrapper wrapper = Tomcat.addServlet(context, "servlet", servlet);
+        if (remoteHost != null) {
+            wrapper.addInitParameter("remote_host", remoteHost);
+        }
+        context.addServletMappingDecoded("/*", "servlet");
+        tomcat.start();
+        return tomcat;
+    }
+
+    /**
+     * Reads the whole request body, then writes it back as the response. Echoing while still reading would
+     * stall once the socket buffers fill, since the proxy sends the whole body before it reads the response.
+     */
+    static class Echo extends HttpServlet {
+
+        @Override
+        protected void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            InputStream in = request.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(Math.max(request.getContentLength(), 0));
+            byte[] buffer = new byte[64 * 1024];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                body.write(buffer, 0, len);
+            }
+            response.setContentType("application/octet-stream");
+            response.setContentLength(body.size());
+            body.writeTo(response.getOutputStream());
+        }
+    }
+
+    /**
+     * The proxy with its old request body copy.
+     */
+    static class ByteAtATimeProxyServlet extends ProxyServlet {
+
+        @Override
+        protected HttpEntity createRequestEntity(final HttpServletRequest request) throws IOException {
+            final long contentLength = request.getContentLengthLong();
+            final InputStream body = request.getInputStream();
+            AbstractHttpEntity entity = new AbstractHttpEntity() {
+                @Override
+                public boolean isRepeatable() {
+                    return false;
+                }
+
+                @Override
+                public boolean isStreaming() {
+                    return true;
+                }
+
+                @Override
+                public InputStream getContent() {
+                    return body;
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    int val;
+                    while ((val = body.read()) != -1) {
+                        out.write(val);
+                    }
+                }
+
+                @Override
+                public long getContentLength() {
+                    return contentLength;
+                }
+            };
+            entity.setContentType(request.getContentType());
+            entity.setChunked(contentLength < 0);
+            return entity;
+        }
+    }
+}
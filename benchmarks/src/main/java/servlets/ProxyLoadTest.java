@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test comparing the blocking and the async modes of the {@link ProxyServlet} against a slow upstream.
+ * Both proxies run in one Tomcat limited to a small worker pool; the upstream answers after a fixed delay
+ * without holding a thread of its own. With the blocking proxy every in-flight call pins a worker, so
+ * throughput is capped at workers / delay; the async proxy is only bounded by its connection pool.
+ * <p>
+ * Run it from the benchmarks jar:
+ * <pre>
+ *     java -cp target/benchmarks.jar servlets.ProxyLoadTest [clients] [requests] [upstream delay ms] [workers]
+ * </pre>
+ */
+public class ProxyLoadTest {
+
+    private static final int UPSTREAM_PORT = 9201;
+    private static final int PROXY_PORT    = 9200;
+
+    public static void main(String[] args) throws Exception {
+        int clients  = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+        long delay   = args.length > 2 ? Long.parseLong(args[2]) : 200;
+        int workers  = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        Tomcat upstream = new Tomcat();
+        Context upstreamContext = addContext(upstream, UPSTREAM_PORT, 1000);
+        addServlet(upstreamContext, "upstream", new SlowUpstream(timer, delay), "/*").setAsyncSupported(true);
+        upstream.start();
+
+        Tomcat proxy = new Tomcat();
+        Context proxyContext = addContext(proxy, PROXY_PORT, workers);
+        Wrapper blocking = addServlet(proxyContext, "blocking", new ProxyServlet(), "/blocking/*");
+        Wrapper async = addServlet(proxyContext, "async", new ProxyServlet(), "/async/*");
+        for (Wrapper wrapper : Arrays.asList(blocking, async)) {
+            wrapper.addInitParameter("remote_host", "http://localhost:" + UPSTREAM_PORT);
+            wrapper.addInitParameter("max_connections_per_host", String.valueOf(clients));
+            wrapper.addInitParameter("max_total_connections", String.valueOf(clients));
+        }
+        async.addInitParameter("async", "true");
+        async.setAsyncSupported(true);
+        proxy.start();
+
+        System.out.println(String.format("%d clients, %d requests, %dms upstream delay, %d proxy workers",
+                clients, requests, delay, workers));
+        for (String mode : Arrays.asList("blocking", "async")) {
+            // Warm up connections and code paths before measuring.
+            run(mode, clients, Math.min(requests, clients * 2));
+            System.out.println(run(mode, clients, requests));
+        }
+
+        proxy.stop();
+        timer.shutdownNow();
+        upstream.stop();
+    }
+
+    private static String run(final String mode, int clients, int requests) throws Exception {
+        final String url = "http://localhost:" + PROXY_PORT + "/" + mode + "/services/data/v59.0/sobjects";
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<long[]>> results = new ArrayList<Future<long[]>>(requests);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            results.add(pool.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    long begin = System.nanoTime();
+                    int status = get(url);
+                    return new long[] {System.nanoTime() - begin, status};
+                }
+            }));
+        }
+        long[] latencies = new long[requests];
+        int errors = 0;
+        for (int i = 0; i < requests; i++) {
+            long[] result = results.get(i).get();
+            latencies[i] = result[0];
+            if (result[1] != HttpServletResponse.SC_OK) {
+                errors++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        Arrays.sort(latencies);
+        return String.format("%-8s %8.0f req/s  p50 %5dms  p99 %5dms  errors %d",
+                mode, requests / (elapsed / 1e9),
+                TimeUnit.NANOSECONDS.toMillis(latencies[requests / 2]),
+                TimeUnit.NANOSECONDS.toMillis(latencies[(int) (requests * 0.99)]),
+                errors);
+    }
+
+    static int get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        int status = connection.getResponseCode();
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (in != null) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                body.write(buffer, 0, len);
+            }
+            in.close();
+        }
+        return status;
+    }
+
+    static Context addContext(Tomcat tomcat, int port, int maxThreads) throws IOException {
+        tomcat.setBaseDir(Files.createTempDirectory("tomcat").toString());
+        Connector connector = new Connector("HTTP/1.1");
+        connector.setPort(port);
+        connector.setProperty("maxThreads", String.valueOf(maxThreads));
+        connector.setProperty("maxConnections", "10000");
+        connector.setProperty("acceptCount", "10000");
+        tomcat.getService().addConnector(connector);
+        tomcat.setConnector(connector);
+        return tomcat.addContext("", new File(".").getAbsolutePath());
+    }
+
+    static Wrapper addServlet(Context context, String name, HttpServlet servlet, String pattern) {
+        Wrapper wrapper = Tomcat.addServlet(context, name, servlet);
+        context.addServletMappingDecoded(pattern, name);
+        return wrapper;
+    }
+
+    /**
+     * Answers every request after a fixed delay, without holding a container thread meanwhile.
+     */
+    static class SlowUpstream extends HttpServlet {
+
+        private final ScheduledExecutorService timer;
+        private final long delay;
+
+        SlowUpstream(ScheduledExecutorService timer, long delay) {
+            this.timer = timer;
+            this.delay = delay;
+        }
+
+        @Override
+        protected void service(HttpServletRequest request, HttpServletResponse response) {
+            final AsyncContext context = request.startAsync();
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HttpServletResponse response = (HttpServletResponse) context.getResponse();
+                        response.setContentType("application/json;charset=UTF-8");
+                        response.getWriter().write("{\"totalSize\":1,\"done\":true,\"records\":[]}");
+                    } catch (IOException e) {
+                        // The client went away.
+                    }
+                    context.complete();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
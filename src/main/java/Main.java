@@ -40,6 +40,10 @@ import org.apache.catalina.Context;
 import org.apache.catalina.connector.Connector;
 import org.apache.catalina.startup.Tomcat;
 import org.apache.tomcat.util.scan.StandardJarScanner;
+import org.apache.catalina.Executor;
+import org.apache.catalina.core.StandardThreadExecutor;
+import org.apache.catalina.core.StandardVirtualThreadExecutor;
+import org.apache.tomcat.util.compat.JreCompat;
 import java.io.File;
 
 /**
@@ -48,6 +52,18 @@ import java.io.File;
  * This is the entry point to your application. The Java command that is used for
  * launching should fire this main method.
  *
+ * The executor the connectors run requests on is picked with the tomcat.executor system property or the
+ * TOMCAT_EXECUTOR environment variable. "virtual" runs every request on a virtual thread of its own on a JDK
+ * that has them (21 and later), so requests blocked on the proxy's upstream calls or on OAuth no longer hold
+ * a platform thread; on older JDKs it falls back to "pool", a bounded pool shared by the connectors and sized
+ * with tomcat.maxThreads / TOMCAT_MAX_THREADS and tomcat.minSpareThreads / TOMCAT_MIN_SPARE_THREADS. Left
+ * unset, each connector keeps Tomcat's default pool.
+ *
+ * Virtual threads only lift the executor's cap: a blocking proxied request still holds one of the
+ * ProxyServlet's upstream connections, so its max_connections_per_host and max_total_connections have to be
+ * sized along with the executor. An undersized connection pool is worse on virtual threads than on a pool:
+ * HttpClient waits for a pooled connection inside a synchronized block, as commons-httpclient 3.1 did, and
+ * on Java 21 a virtual thread waiting there pins its carrier thread.
  */
 public class Main {
     
@@ -104,6 +120,7 @@ public class Main {
 
             // Set the default connector to HTTP
             tomcat.setConnector(httpConnector);
+            useExecutor(tomcat, createExecutor(), httpConnector, httpsConnector);
 
             // Add the web application context
             StandardContext ctx = (StandardContext) tomcat.addWebapp("/", new File(webappDirLocation).getAbsolutePath());
@@ -139,6 +156,7 @@ public class Main {
             Connector conn = new Connector();
             conn.setPort(Integer.valueOf(webPort));
             tomcat.setConnector(conn);
+            useExecutor(tomcat, createExecutor(), conn);
 
             StandardContext ctx = (StandardContext) tomcat.addWebapp("/", new File(webappDirLocation).getAbsolutePath());
             System.out.println("configuring app with basedir: " + new File("./" + webappDirLocation).getAbsolutePath());
@@ -154,4 +172,60 @@ public class Main {
         }
     }
 
+    /**
+     * @return the executor picked by tomcat.executor, or null to leave the connectors their own pools.
+     */
+    static Executor createExecutor() {
+        String executor = setting("tomcat.executor", "TOMCAT_EXECUTOR", "");
+        if (executor.isEmpty()) {
+            return null;
+        }
+        if (!executor.equalsIgnoreCase("virtual") && !executor.equalsIgnoreCase("pool")) {
+            throw new IllegalArgumentException(String.format("Unknown executor [%s], use virtual or pool", executor));
+        }
+
+        if (executor.equalsIgnoreCase("virtual")) {
+            if (JreCompat.isJre21Available()) {
+                System.out.println("Running requests on virtual threads.");
+                StandardVirtualThreadExecutor virtual = new StandardVirtualThreadExecutor();
+                virtual.setName("tomcatVirtualThreadExecutor");
+                virtual.setNamePrefix("http-virtual-");
+                return virtual;
+            }
+            System.out.println("Virtual threads need Java 21 or later, falling back to a thread pool.");
+        }
+
+        StandardThreadExecutor pool = new StandardThreadExecutor();
+        pool.setName("tomcatThreadPool");
+        pool.setNamePrefix("http-exec-");
+        pool.setMaxThreads(Integer.parseInt(setting("tomcat.maxThreads", "TOMCAT_MAX_THREADS", "200")));
+        pool.setMinSpareThreads(Integer.parseInt(setting("tomcat.minSpareThreads", "TOMCAT_MIN_SPARE_THREADS", "25")));
+        System.out.println("Running requests on a pool of up to " + pool.getMaxThreads() + " threads.");
+        return pool;
+    }
+
+    /**
+     * Runs the connectors' requests on the executor, which the service starts and stops with them.
+     */
+    static void useExecutor(Tomcat tomcat, Executor executor, Connector... connectors) {
+        if (executor == null) {
+            return;
+        }
+        tomcat.getService().addExecutor(executor);
+        for (Connector connector : connectors) {
+            connector.getProtocolHandler().setExecutor(executor);
+        }
+    }
+
+    /**
+     * @return the system property if it is set, else the environment variable, else the default.
+     */
+    private static String setting(String property, String variable, String defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(variable);
+        }
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
 }
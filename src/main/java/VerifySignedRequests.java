@@ -0,0 +1,184 @@
+/*
+Copyright (c) 2011, salesforce.com, inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided
+that the following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the
+following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+the following disclaimer in the documentation and/or other materials provided with the distribution.
+
+Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+promote products derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import canvas.SignedRequestKeyRing;
+import canvas.SignedRequestVerifier;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *
+ * Re-verifies an archive of signed requests, for instance for a compliance audit. The input file holds
+ * one signed request per line. Every line is verified in parallel across all cores and the output file
+ * gets one line per input line, in the same order:
+ * <pre>
+ *     &lt;line number&gt; TAB OK TAB &lt;decoded JSON&gt;
+ *     &lt;line number&gt; TAB FAILED TAB &lt;reason&gt;
+ * </pre>
+ * The consumer secret is read from CANVAS_CONSUMER_SECRET. Archives that span a secret rotation can
+ * list every secret, comma separated, in CANVAS_CONSUMER_SECRETS instead.
+ *
+ */
+public class VerifySignedRequests {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CHUNK_SIZE = 4096;
+    private static final String USAGE = "Usage: VerifySignedRequests <input file> <output file> [threads]";
+
+    /**
+     * @param args input file, output file and optionally the number of threads.
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 2) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        // Each worker thread gets its own Mac and buffers from the verifier.
+        final SignedRequestVerifier verifier = new SignedRequestVerifier(keyRing());
+        verifier.setJsonMode(SignedRequestVerifier.JsonMode.VALIDATE);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // Chunks are written in the order they were read, with a bounded number in flight.
+        ArrayDeque<Future<Results>> pending = new ArrayDeque<Future<Results>>();
+        long lines = 0;
+        long failed = 0;
+        long start = System.nanoTime();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), UTF_8), 1 << 16);
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1]), UTF_8), 1 << 16);
+        try {
+            List<String> chunk = new ArrayList<String>(CHUNK_SIZE);
+            String line;
+            while ((line = in.readLine()) != null) {
+                chunk.add(line);
+                if (chunk.size() == CHUNK_SIZE) {
+                    pending.add(pool.submit(verify(verifier, chunk, lines + 1)));
+                    lines += chunk.size();
+                    chunk = new ArrayList<String>(CHUNK_SIZE);
+                    if (pending.size() > threads * 2) {
+                        failed += write(out, pending.poll().get());
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                pending.add(pool.submit(verify(verifier, chunk, lines + 1)));
+                lines += chunk.size();
+            }
+            while (!pending.isEmpty()) {
+                failed += write(out, pending.poll().get());
+            }
+        } finally {
+            pool.shutdownNow();
+            in.close();
+            out.close();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Verified %d signed requests (%d ok, %d failed) in %.2f s, %.0f requests/s on %d threads",
+                lines, lines - failed, failed, seconds, lines / seconds, threads));
+    }
+
+    private static SignedRequestKeyRing keyRing() {
+        String secrets = System.getenv("CANVAS_CONSUMER_SECRETS");
+        if (secrets == null || secrets.trim().length() == 0) {
+            return SignedRequestKeyRing.of(System.getenv("CANVAS_CONSUMER_SECRET"));
+        }
+        List<String> keys = new ArrayList<String>();
+        for (String secret : secrets.split(",")) {
+            if (secret.trim().length() > 0) {
+                keys.add(secret.trim());
+            }
+        }
+        if (keys.isEmpty()) {
+            // Without a key every line would just be reported as a failed signature.
+            System.err.println("CANVAS_CONSUMER_SECRETS holds no secrets, list them comma separated");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        return SignedRequestKeyRing.of(keys.toArray(new String[keys.size()]));
+    }
+
+    private static Callable<Results> verify(final SignedRequestVerifier verifier, final List<String> chunk, final long firstLine) {
+        return new Callable<Results>() {
+            @Override
+            public Results call() {
+                Results results = new Results(chunk.size());
+                for (int i = 0; i < chunk.size(); i++) {
+                    String result;
+                    try {
+                        result = "OK\t" + verifier.verifyAndDecodeAsJson(chunk.get(i).trim());
+                    } catch (SecurityException e) {
+                        result = "FAILED\t" + e.getMessage();
+                        results.failed++;
+                    }
+                    // JSON whitespace and exception messages may span lines, the output is one line each.
+                    results.lines[i] = (firstLine + i) + "\t" + result.replace('\r', ' ').replace('\n', ' ');
+                }
+                return results;
+            }
+        };
+    }
+
+    /**
+     * @return the number of requests in the chunk that failed verification.
+     */
+    private static int write(BufferedWriter out, Results results) throws Exception {
+        for (String result : results.lines) {
+            out.write(result);
+            out.newLine();
+        }
+        return results.failed;
+    }
+
+    /**
+     * The output lines of one chunk and how many of them are failures.
+     */
+    private static final class Results {
+        final String[] lines;
+        int failed;
+
+        Results(int size) {
+            this.lines = new String[size];
+        }
+    }
+}
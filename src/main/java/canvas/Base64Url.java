@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canvas;
+
+/**
+ * Minimal base64 decoder for the parts of a signed request. Decodes straight into a caller supplied
+ * buffer so the verifier can reuse its buffers between requests.
+ * <p>
+ * Both the url safe and the standard alphabet are accepted, and trailing padding is optional.
+ */
+final class Base64Url {
+
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        java.util.Arrays.fill(DECODE_TABLE, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE_TABLE[alphabet.charAt(i)] = (byte) i;
+        }
+        DECODE_TABLE['+'] = 62;
+        DECODE_TABLE['-'] = 62;
+        DECODE_TABLE['/'] = 63;
+        DECODE_TABLE['_'] = 63;
+    }
+
+    private Base64Url() {
+    }
+
+    /**
+     * @return the largest number of bytes {@code length} encoded characters can decode to.
+     */
+    static int maxDecodedLength(int length) {
+        return (length / 4) * 3 + 2;
+    }
+
+    /**
+     * Decodes {@code length} ASCII characters of {@code src} starting at {@code offset} into
+     * {@code dst}, which must hold at least {@link #maxDecodedLength(int)} bytes.
+     *
+     * @return the number of bytes written to {@code dst}.
+     * @throws SecurityException if the input is not valid base64.
+     */
+    static int decode(byte[] src, int offset, int length, byte[] dst) throws SecurityException {
+        int end = offset + length;
+        // Padding is optional, strip it so the tail can be decoded the same way either way.
+        while (end > offset && src[end - 1] == '=') {
+            end--;
+        }
+
+        int out = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = offset; i < end; i++) {
+            int c = src[i];
+            int value = c < 0 ? -1 : DECODE_TABLE[c];
+            if (value < 0) {
+                throw new SecurityException(String.format("Illegal base64 character [%s]", (char) (c & 0xff)));
+            }
+            bits = (bits << 6) | value;
+            if (++count == 4) {
+                dst[out++] = (byte) (bits >> 16);
+                dst[out++] = (byte) (bits >> 8);
+                dst[out++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        switch (count) {
+            case 0:
+                break;
+            case 2:
+                dst[out++] = (byte) (bits >> 4);
+                break;
+            case 3:
+                dst[out++] = (byte) (bits >> 10);
+                dst[out++] = (byte) (bits >> 2);
+                break;
+            default:
+                throw new SecurityException("Truncated base64 input");
+        }
+        return out;
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canvas;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+
+/**
+ * A {@link CanvasRequest} that binds the context sections only when they are first asked for.
+ * <p>
+ * The request is built from a single token pass over the verified envelope. The top level fields and
+ * the client are read during that pass, while each section of the context is only located and stays
+ * in the envelope until its getter is called. Pages that only look at the client and user id never
+ * bind the user, organization, link or environment contexts at all.
+ */
+final class LazyCanvasRequest extends CanvasRequest {
+
+    private static final ObjectMapper MAPPER = SignedRequestVerifier.MAPPER;
+    private static final ObjectReader CLIENT_READER = MAPPER.readerFor(CanvasClient.class);
+
+    private LazyCanvasRequest() {
+    }
+
+    /**
+     * @param envelope the verified envelope. It is kept by the request, so it must not be reused.
+     */
+    static LazyCanvasRequest parse(byte[] envelope) throws IOException {
+        LazyCanvasRequest request = new LazyCanvasRequest();
+        JsonParser parser = MAPPER.getFactory().createParser(envelope);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Signed request envelope is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                if ("algorithm".equals(name)) {
+                    request.setAlgorithm(parser.getValueAsString());
+                } else if ("issuedAt".equals(name)) {
+                    request.setIssuedAt(parser.getValueAsInt());
+                } else if ("userId".equals(name)) {
+                    request.setUserId(parser.getValueAsString());
+                } else if ("client".equals(name)) {
+                    request.setClient(CLIENT_READER.<CanvasClient>readValue(parser));
+                } else if ("context".equals(name) && value == JsonToken.START_OBJECT) {
+                    request.setContext(LazyContext.locate(envelope, parser));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return request;
+    }
+
+    /**
+     * The context with the byte range of each section in the envelope, bound on first access.
+     */
+    static final class LazyContext extends CanvasContext {
+
+        private static final ObjectReader USER_READER = MAPPER.readerFor(CanvasUserContext.class);
+        private static final ObjectReader ORGANIZATION_READER = MAPPER.readerFor(CanvasOrganizationContext.class);
+        private static final ObjectReader ENVIRONMENT_READER = MAPPER.readerFor(CanvasEnvironmentContext.class);
+        private static final ObjectReader LINK_READER = MAPPER.readerFor(CanvasLinkContext.class);
+
+        private final byte[] envelope;
+        private final Section user = new Section();
+        private final Section organization = new Section();
+        private final Section environment = new Section();
+        private final Section links = new Section();
+
+        private LazyContext(byte[] envelope) {
+            this.envelope = envelope;
+        }
+
+        /**
+         * Records where each section starts and ends, with the parser on the context's start token.
+         * Leaves the parser on the context's end token.
+         */
+        static LazyContext locate(byte[] envelope, JsonParser parser) throws IOException {
+            LazyContext context = new LazyContext(envelope);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                Section section = context.section(name);
+                if (section != null && value == JsonToken.START_OBJECT) {
+                    section.start = (int) parser.getTokenLocation().getByteOffset();
+                    parser.skipChildren();
+                    section.end = (int) parser.getCurrentLocation().getByteOffset();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return context;
+        }
+
+        private Section section(String name) {
+            if ("user".equals(name)) {
+                return user;
+            } else if ("organization".equals(name)) {
+                return organization;
+            } else if ("environment".equals(name)) {
+                return environment;
+            } else if ("links".equals(name)) {
+                return links;
+            }
+            return null;
+        }
+
+        @Override
+        public synchronized CanvasUserContext getUserContext() {
+            if (!user.bound) {
+                super.setUserContext(bind(USER_READER, CanvasUserContext.class, user));
+            }
+            return super.getUserContext();
+        }
+
+        @Override
+        public synchronized void setUserContext(CanvasUserContext userContext) {
+            user.bound = true;
+            super.setUserContext(userContext);
+        }
+
+        @Override
+        public synchronized CanvasOrganizationContext getOrganizationContext() {
+            if (!organization.bound) {
+                super.setOrganizationContext(bind(ORGANIZATION_READER, CanvasOrganizationContext.class, organization));
+            }
+            return super.getOrganizationContext();
+        }
+
+        @Override
+        public synchronized void setOrganizationContext(CanvasOrganizationContext orgContext) {
+            organization.bound = true;
+            super.setOrganizationContext(orgContext);
+        }
+
+        @Override
+        public synchronized CanvasEnvironmentContext getEnvironmentContext() {
+            if (!environment.bound) {
+                super.setEnvironmentContext(bind(ENVIRONMENT_READER, CanvasEnvironmentContext.class, environment));
+            }
+            return super.getEnvironmentContext();
+        }
+
+        @Override
+        public synchronized void setEnvironmentContext(CanvasEnvironmentContext envContext) {
+            environment.bound = true;
+            super.setEnvironmentContext(envContext);
+        }
+
+        @Override
+        public synchronized CanvasLinkContext getLinkContext() {
+            if (!links.bound) {
+                super.setLinkContext(bind(LINK_READER, CanvasLinkContext.class, links));
+            }
+            return super.getLinkContext();
+        }
+
+        @Override
+        public synchronized void setLinkContext(CanvasLinkContext linkContext) {
+            links.bound = true;
+            super.setLinkContext(linkContext);
+        }
+
+        @Override
+        public synchronized String toString() {
+            getUserContext();
+            getOrganizationContext();
+            getEnvironmentContext();
+            getLinkContext();
+            return super.toString();
+        }
+
+        private <T> T bind(ObjectReader reader, Class<T> type, Section section) {
+            section.bound = true;
+            if (section.start < 0) {
+                return null;
+            }
+            try {
+                return reader.readValue(envelope, section.start, section.end - section.start);
+            } catch (IOException e) {
+                throw new SecurityException(String.format("Error [%s] deserializing JSON to Object [%s]", e.getMessage(),
+                        type.getName()), e);
+            }
+        }
+
+        private static final class Section {
+            int start = -1;
+            int end = -1;
+            boolean bound;
+        }
+    }
+}
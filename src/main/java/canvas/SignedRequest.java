@@ -26,20 +26,7 @@
 
 package canvas;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
-import org.apache.commons.codec.binary.Base64;
-
-import javax.crypto.Mac;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.IOException;
-import java.io.StringWriter;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  *
@@ -48,106 +35,68 @@ import java.util.HashMap;
  * <p>
  * This utility class has two methods. One verifies and decodes the request as a Java object the
  * other as a JSON String.
+ * <p>
+ * Both methods delegate to a cached {@link SignedRequestVerifier} for the given secret. Applications
+ * that know their secret up front can hold on to their own verifier instead.
  *
  */
 public class SignedRequest {
 
-    public static CanvasRequest verifyAndDecode(String input, String secret) throws SecurityException {
-
-        String[] split = getParts(input);
-
-        String encodedSig = split[0];
-        String encodedEnvelope = split[1];
-
-        // Deserialize the json body
-        String json_envelope = new String(new Base64(true).decode(encodedEnvelope));
-        ObjectMapper mapper = new ObjectMapper();
-        ObjectReader reader = mapper.reader(CanvasRequest.class);
-        CanvasRequest canvasRequest;
-        String algorithm;
-        try {
-            canvasRequest = reader.readValue(json_envelope);
-            algorithm = canvasRequest.getAlgorithm() == null ? "HMACSHA256" : canvasRequest.getAlgorithm();
-        } catch (IOException e) {
-            throw new SecurityException(String.format("Error [%s] deserializing JSON to Object [%s]", e.getMessage(), CanvasRequest.class.getName()), e);
-        }
-
-        verify(secret, algorithm, encodedEnvelope, encodedSig);
+    private static volatile SignedRequestVerifier defaultVerifier;
+    private static volatile SignedRequestCache cache;
 
-        // If we got this far, then the request was not tampered with.
-        // return the request as a Java object
-        return canvasRequest;
+    public static CanvasRequest verifyAndDecode(String input, String secret) throws SecurityException {
+        return getVerifier(secret).verifyAndDecode(input);
     }
 
-
     public static String verifyAndDecodeAsJson(String input, String secret) throws SecurityException {
-
-        String[] split = getParts(input);
-
-        String encodedSig = split[0];
-        String encodedEnvelope = split[1];
-
-        String json_envelope = new String(new Base64(true).decode(encodedEnvelope));
-        ObjectMapper mapper = new ObjectMapper();
-
-        String algorithm;
-        StringWriter writer;
-        TypeReference<HashMap<String,Object>> typeRef
-                = new TypeReference<HashMap<String, Object>>() { };
-        try {
-            HashMap<String,Object> o = mapper.readValue(json_envelope, typeRef);
-            writer = new StringWriter();
-            mapper.writeValue(writer, o);
-            algorithm = (String)o.get("algorithm");
-        } catch (IOException e) {
-            throw new SecurityException(String.format("Error [%s] deserializing JSON to Object [%s]", e.getMessage(),
-                    typeRef.getClass().getName()), e);
-        }
-
-        verify(secret, algorithm, encodedEnvelope, encodedSig);
-
-        // If we got this far, then the request was not tampered with.
-        // return the request as a JSON string.
-        return writer.toString();
+        return getVerifier(secret).verifyAndDecodeAsJson(input);
     }
 
-    private static String[] getParts(String input) {
-
-        if (input == null || input.indexOf(".") <= 0) {
-            throw new SecurityException(String.format("Input [%s] doesn't look like a signed request", input));
-        }
+    /**
+     * Verifies and decodes the signed request on a worker pool.
+     *
+     * @see SignedRequestVerifier#verifyAndDecodeAsync(String)
+     */
+    public static CompletableFuture<CanvasRequest> verifyAndDecodeAsync(String input, String secret) {
+        return getVerifier(secret).verifyAndDecodeAsync(input);
+    }
 
-        String[] split = input.split("[.]", 2);
-        return split;
+    /**
+     * Verifies the signed request and decodes it as a JSON string on a worker pool.
+     *
+     * @see SignedRequestVerifier#verifyAndDecodeAsJsonAsync(String)
+     */
+    public static CompletableFuture<String> verifyAndDecodeAsJsonAsync(String input, String secret) {
+        return getVerifier(secret).verifyAndDecodeAsJsonAsync(input);
     }
 
-    private static void verify(String secret, String algorithm, String encodedEnvelope, String encodedSig )
-        throws SecurityException
-    {
-    	if (secret == null || secret.trim().length() == 0) {
-            throw new IllegalArgumentException("secret is null, did you set your environment variable CANVAS_CONSUMER_SECRET?");
+    /**
+     * Puts a cache of verified requests in front of {@link #verifyAndDecode(String, String)}, or
+     * removes it when null.
+     */
+    public static void setCache(SignedRequestCache requestCache) {
+        cache = requestCache;
+        SignedRequestVerifier verifier = defaultVerifier;
+        if (verifier != null) {
+            verifier.setCache(requestCache);
         }
+    }
 
-        SecretKey hmacKey = null;
-        try {
-            byte[] key = secret.getBytes();
-            hmacKey = new SecretKeySpec(key, algorithm);
-            Mac mac = Mac.getInstance(algorithm);
-            mac.init(hmacKey);
+    public static SignedRequestCache getCache() {
+        return cache;
+    }
 
-            // Check to see if the body was tampered with
-            byte[] digest = mac.doFinal(encodedEnvelope.getBytes());
-            byte[] decode_sig = new Base64(true).decode(encodedSig);
-            if (! Arrays.equals(digest, decode_sig)) {
-                String label = "Warning: Request was tampered with";
-                throw new SecurityException(label);
-            }
-        } catch (NoSuchAlgorithmException e) {
-            throw new SecurityException(String.format("Problem with algorithm [%s] Error [%s]", algorithm, e.getMessage()), e);
-        } catch (InvalidKeyException e) {
-            throw new SecurityException(String.format("Problem with key [%s] Error [%s]", hmacKey, e.getMessage()), e);
+    /**
+     * Returns the cached verifier for the secret, replacing it if the secret changed.
+     */
+    static SignedRequestVerifier getVerifier(String secret) {
+        SignedRequestVerifier verifier = defaultVerifier;
+        if (verifier == null || !verifier.hasSecret(secret)) {
+            verifier = new SignedRequestVerifier(secret);
+            verifier.setCache(cache);
+            defaultVerifier = verifier;
         }
-
-        // If we got here and didn't throw a SecurityException then all is good.
+        return verifier;
     }
 }
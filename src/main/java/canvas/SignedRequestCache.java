@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canvas;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * A bounded cache of verified signed requests, keyed by the encoded signature and the fingerprint of
+ * the secret that verified it. Salesforce posts the exact same signed request again when a canvas tab
+ * is refreshed or a page layout renders the same canvas app more than once, and a hit here skips the
+ * Base64 decoding and the MAC.
+ * <p>
+ * Entries are evicted least recently used first once the cache is full, and expire after the time to
+ * live. When the request carries an {@code issuedAt} time the entry never outlives issuedAt plus the
+ * time to live.
+ * <p>
+ * The cache holds the verified envelope rather than a decoded request, so every hit is bound into a
+ * {@link CanvasRequest} of its own and callers can change the requests they get back freely.
+ *
+ */
+public class SignedRequestCache {
+
+    private final int  maxEntries;
+    private final long ttlMillis;
+    private final Map<String, CachedRequest> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries the most requests to keep.
+     * @param ttlMillis how long a verified request is served from the cache.
+     */
+    public SignedRequestCache(int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttlMillis must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, CachedRequest>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRequest> eldest) {
+                if (size() > SignedRequestCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the verified envelope of this exact input, or null. It is shared, so it must not be changed.
+     */
+    synchronized byte[] get(String fingerprint, String input) {
+        String key = key(fingerprint, input);
+        CachedRequest entry = key == null ? null : entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            evictions++;
+            misses++;
+            return null;
+        }
+        // The key is only the signature, the rest of the input has to match as well.
+        if (!entry.input.equals(input)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.envelope;
+    }
+
+    /**
+     * @param envelope the verified envelope, which the cache keeps.
+     * @param issuedAt the request's issuedAt time in seconds, or null.
+     */
+    synchronized void put(String fingerprint, String input, byte[] envelope, Integer issuedAt) {
+        String key = key(fingerprint, input);
+        if (key == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + ttlMillis;
+        if (issuedAt != null) {
+            expiresAt = Math.min(expiresAt, issuedAt * 1000L + ttlMillis);
+        }
+        if (expiresAt > now) {
+            entries.put(key, new CachedRequest(input, envelope, expiresAt));
+        }
+    }
+
+    /**
+     * Drops every expired entry. Expired entries are otherwise only dropped when they are looked up
+     * or pushed out by newer ones.
+     */
+    public synchronized void purgeExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<CachedRequest> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().expiresAt <= now) {
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the number of entries dropped because the cache was full or the entry had expired.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SignedRequestCache[size=%d, hits=%d, misses=%d, evictions=%d]",
+                entries.size(), hits, misses, evictions);
+    }
+
+    private static String key(String fingerprint, String input) {
+        int separator = input == null ? -1 : input.indexOf('.');
+        if (separator <= 0) {
+            return null;
+        }
+        return fingerprint + ':' + input.substring(0, separator);
+    }
+
+    private static final class CachedRequest {
+        final String input;
+        final byte[] envelope;
+        final long expiresAt;
+
+        CachedRequest(String input, byte[] envelope, long expiresAt) {
+            this.input = input;
+            this.envelope = envelope;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
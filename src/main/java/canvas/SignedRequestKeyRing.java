@@ -0,0 +1,259 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canvas;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * The consumer secrets a {@link SignedRequestVerifier} accepts. While a connected app's consumer secret
+ * is being rotated, requests can arrive signed with either the old or the new secret, so both go on the
+ * ring and keys can be added or removed while the application is running.
+ * <p>
+ * The key that verified the most recent request is tried first, so once traffic has moved over to a
+ * new secret verifying a request costs a single MAC again.
+ *
+ */
+public class SignedRequestKeyRing {
+
+    private final CopyOnWriteArrayList<Key> keys = new CopyOnWriteArrayList<Key>();
+    private volatile Key preferred;
+    private volatile String fingerprint = "";
+
+    public SignedRequestKeyRing() {
+    }
+
+    /**
+     * Creates a ring holding the given secrets, with ids "0", "1", ... in order. The first secret is
+     * tried first until another one matches.
+     */
+    public static SignedRequestKeyRing of(String... secrets) {
+        SignedRequestKeyRing ring = new SignedRequestKeyRing();
+        for (int i = 0; i < secrets.length; i++) {
+            ring.addKey(String.valueOf(i), secrets[i]);
+        }
+        return ring;
+    }
+
+    /**
+     * Adds a secret to the ring, replacing any key with the same id. A newly added key is tried after
+     * the key that matched most recently.
+     *
+     * @param id a name for the key, reported when it verifies a request.
+     * @param secret the consumer secret.
+     */
+    public synchronized void addKey(String id, String secret) {
+        if (id == null) {
+            throw new IllegalArgumentException("id is null");
+        }
+        if (secret == null || secret.trim().length() == 0) {
+            throw new IllegalArgumentException("secret is null, did you set your environment variable CANVAS_CONSUMER_SECRET?");
+        }
+        removeKey(id);
+        Key key = new Key(id, secret);
+        keys.add(key);
+        if (preferred == null) {
+            preferred = key;
+        }
+        updateFingerprint();
+    }
+
+    /**
+     * Removes a key, for instance once the secret it holds has been retired.
+     *
+     * @return true if a key with this id was on the ring.
+     */
+    public synchronized boolean removeKey(String id) {
+        for (Key key : keys) {
+            if (key.id.equals(id)) {
+                keys.remove(key);
+                if (preferred == key) {
+                    preferred = keys.isEmpty() ? null : keys.get(0);
+                }
+                updateFingerprint();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<String> getKeyIds() {
+        List<String> ids = new ArrayList<String>();
+        for (Key key : keys) {
+            ids.add(key.id);
+        }
+        return ids;
+    }
+
+    /**
+     * @return the id of the key that is tried first, which is the one that matched most recently.
+     */
+    public String getPreferredKeyId() {
+        Key key = preferred;
+        return key == null ? null : key.id;
+    }
+
+    /**
+     * @return how many requests the key with this id has verified, or 0 if it isn't on the ring.
+     */
+    public long getMatchCount(String id) {
+        for (Key key : keys) {
+            if (key.id.equals(id)) {
+                return key.matches.get();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return true if the ring holds exactly this one secret.
+     */
+    boolean holdsOnly(String secret) {
+        return keys.size() == 1 && keys.get(0).secret.equals(secret);
+    }
+
+    /**
+     * Identifies the current set of keys without revealing them. Changes whenever a key is added or
+     * removed, so anything cached against a retired key stops matching.
+     */
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    Key getPreferred() {
+        return preferred;
+    }
+
+    List<Key> getKeys() {
+        return keys;
+    }
+
+    void matched(Key key) {
+        key.matches.incrementAndGet();
+        if (preferred != key) {
+            preferred = key;
+        }
+    }
+
+    private void updateFingerprint() {
+        StringBuilder combined = new StringBuilder();
+        for (Key key : keys) {
+            combined.append(key.fingerprint);
+        }
+        fingerprint = combined.toString();
+    }
+
+    /**
+     * A consumer secret with the per-thread Mac instances initialized with it.
+     */
+    static final class Key {
+
+        // The algorithms Salesforce signs with. The name comes from the envelope before the signature is
+        // checked, so it is matched against these rather than used as a cache key as it is.
+        private static final String[] ALGORITHMS = {"HMACSHA256", "HMACSHA1", "HMACSHA512"};
+
+        final String id;
+        private final String secret;
+        private final byte[] bytes;
+        private final String fingerprint;
+        private final AtomicLong matches = new AtomicLong();
+
+        // Mac instances are not thread safe, so every thread gets its own, keyed by algorithm.
+        private final ThreadLocal<Map<String, Mac>> macs = new ThreadLocal<Map<String, Mac>>() {
+            @Override
+            protected Map<String, Mac> initialValue() {
+                return new HashMap<String, Mac>();
+            }
+        };
+
+        Key(String id, String secret) {
+            this.id = id;
+            this.secret = secret;
+            this.bytes = secret.getBytes();
+            this.fingerprint = fingerprint(bytes);
+            // Initialize the Mac for the usual algorithm up front so a bad key shows up straight away.
+            mac(SignedRequestVerifier.DEFAULT_ALGORITHM);
+        }
+
+        Mac mac(String algorithm) throws SecurityException {
+            algorithm = supported(algorithm);
+            Map<String, Mac> threadMacs = macs.get();
+            Mac mac = threadMacs.get(algorithm);
+            if (mac != null) {
+                return mac;
+            }
+
+            SecretKey hmacKey = null;
+            try {
+                hmacKey = new SecretKeySpec(bytes, algorithm);
+                mac = Mac.getInstance(algorithm);
+                mac.init(hmacKey);
+            } catch (NoSuchAlgorithmException e) {
+                throw new SecurityException(String.format("Problem with algorithm [%s] Error [%s]", algorithm, e.getMessage()), e);
+            } catch (InvalidKeyException e) {
+                throw new SecurityException(String.format("Problem with key [%s] Error [%s]", hmacKey, e.getMessage()), e);
+            } catch (IllegalArgumentException e) {
+                throw new SecurityException(String.format("Problem with algorithm [%s] Error [%s]", algorithm, e.getMessage()), e);
+            }
+            threadMacs.put(algorithm, mac);
+            return mac;
+        }
+
+        private static String supported(String algorithm) throws SecurityException {
+            for (String supported : ALGORITHMS) {
+                if (supported.equalsIgnoreCase(algorithm)) {
+                    return supported;
+                }
+            }
+            throw new SecurityException(String.format("Unsupported algorithm [%s]", algorithm));
+        }
+
+        private static String fingerprint(byte[] key) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(key);
+                StringBuilder hex = new StringBuilder();
+                for (int i = 0; i < 8; i++) {
+                    hex.append(String.format("%02x", digest[i]));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
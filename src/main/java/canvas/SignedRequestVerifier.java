@@ -0,0 +1,651 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canvas;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ *
+ * A reusable, thread-safe verifier for signed requests sent by a single canvas application.
+ * <p>
+ * Construct one instance per consumer secret, or per {@link SignedRequestKeyRing} while a secret is
+ * being rotated, and share it. The Jackson readers are built once and each thread keeps its own
+ * initialized {@link Mac} per key and algorithm, so verifying a request does not pay for any of that
+ * setup again. Decoding works on bytes throughout: the separator is found with an index scan, both
+ * parts are decoded into per-thread buffers, the MAC runs over the ASCII bytes of the encoded
+ * envelope and Jackson reads the decoded envelope straight from the buffer.
+ * <p>
+ * The signature is checked over the encoded envelope before anything is deserialized. Only the
+ * algorithm is scanned out of the envelope first (or fixed up front), so forged and malformed
+ * requests are turned away without building an object graph. The counters on this class show how
+ * many requests were rejected that way.
+ *
+ */
+public class SignedRequestVerifier {
+
+    static final String DEFAULT_ALGORITHM = "HMACSHA256";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<HashMap<String,Object>> ENVELOPE_TYPE
+            = new TypeReference<HashMap<String, Object>>() { };
+    private static final ObjectReader CANVAS_REQUEST_READER = MAPPER.readerFor(CanvasRequest.class);
+    private static final ObjectReader ENVELOPE_READER = MAPPER.readerFor(ENVELOPE_TYPE);
+
+    private final SignedRequestKeyRing keyRing;
+    private final String algorithm;
+
+    private volatile SignedRequestCache cache;
+    private volatile JsonMode jsonMode = JsonMode.VALIDATE;
+    private volatile Executor executor;
+
+    private final AtomicLong verified  = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong tampered  = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    // The scratch buffers are not thread safe, so every thread gets its own.
+    private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    /**
+     * @param secret the consumer secret of the canvas application's connected app.
+     */
+    public SignedRequestVerifier(String secret) {
+        this(secret, null);
+    }
+
+    /**
+     * @param secret the consumer secret of the canvas application's connected app.
+     * @param algorithm the signing algorithm to assume for every request, or null to read it from
+     *                  each envelope.
+     */
+    public SignedRequestVerifier(String secret, String algorithm) {
+        this(SignedRequestKeyRing.of(secret), algorithm);
+    }
+
+    /**
+     * @param keyRing the consumer secrets to accept, for instance the old and new secret while rotating.
+     */
+    public SignedRequestVerifier(SignedRequestKeyRing keyRing) {
+        this(keyRing, null);
+    }
+
+    /**
+     * @param keyRing the consumer secrets to accept, for instance the old and new secret while rotating.
+     * @param algorithm the signing algorithm to assume for every request, or null to read it from
+     *                  each envelope.
+     */
+    public SignedRequestVerifier(SignedRequestKeyRing keyRing, String algorithm) {
+        if (keyRing == null) {
+            throw new IllegalArgumentException("keyRing is null");
+        }
+        this.keyRing = keyRing;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Verifies the signed request and decodes it as a Java object.
+     */
+    public CanvasRequest verifyAndDecode(String input) throws SecurityException {
+        return verifyAndDecode(input, false);
+    }
+
+    /**
+     * Verifies the signed request and decodes it as a Java object whose context sections (user,
+     * organization, links and environment) are only deserialized when their getters are first called.
+     * The returned request keeps a copy of the envelope until then. Use this on pages that only need the
+     * client and the user id.
+     */
+    public CanvasRequest verifyAndDecodeLazily(String input) throws SecurityException {
+        return verifyAndDecode(input, true);
+    }
+
+    private CanvasRequest verifyAndDecode(String input, boolean lazily) throws SecurityException {
+
+        SignedRequestCache cache = this.cache;
+        if (cache != null) {
+            byte[] cached = cache.get(keyRing.getFingerprint(), input);
+            if (cached != null) {
+                workspaces.get().matchedKeyId = null;
+                // A lazy request only reads its envelope, so it can share the cached one.
+                return decode(cached, cached.length, lazily, false);
+            }
+        }
+
+        Workspace workspace = verifyEnvelope(input);
+
+        // If we got this far, then the request was not tampered with.
+        // Deserialize the json body and return the request as a Java object
+        CanvasRequest canvasRequest = decode(workspace.envelope, workspace.envelopeLength, lazily, true);
+
+        if (cache != null) {
+            cache.put(keyRing.getFingerprint(), input, Arrays.copyOf(workspace.envelope, workspace.envelopeLength),
+                    canvasRequest.getIssuedAt());
+        }
+        return canvasRequest;
+    }
+
+    /**
+     * @param copy whether a lazy request needs a copy of the envelope, which is the case for the reused
+     *             per-thread buffer.
+     */
+    private static CanvasRequest decode(byte[] envelope, int length, boolean lazily, boolean copy)
+            throws SecurityException {
+        try {
+            if (lazily) {
+                return LazyCanvasRequest.parse(copy ? Arrays.copyOf(envelope, length) : envelope);
+            }
+            return CANVAS_REQUEST_READER.readValue(envelope, 0, length);
+        } catch (IOException e) {
+            throw new SecurityException(String.format("Error [%s] deserializing JSON to Object [%s]", e.getMessage(), CanvasRequest.class.getName()), e);
+        }
+    }
+
+    /**
+     * Verifies the signed request and decodes it as a JSON string. How much work goes into the
+     * returned JSON depends on the {@link JsonMode}.
+     */
+    public String verifyAndDecodeAsJson(String input) throws SecurityException {
+
+        Workspace workspace = verifyEnvelope(input);
+
+        // If we got this far, then the request was not tampered with.
+        // return the request as a JSON string.
+        JsonMode mode = jsonMode;
+        try {
+            if (mode == JsonMode.REWRITE) {
+                HashMap<String,Object> o = ENVELOPE_READER.readValue(workspace.envelope, 0, workspace.envelopeLength);
+                return MAPPER.writeValueAsString(o);
+            }
+            if (mode == JsonMode.VALIDATE) {
+                validate(workspace.envelope, workspace.envelopeLength);
+            }
+            return new String(workspace.envelope, 0, workspace.envelopeLength, UTF_8);
+        } catch (IOException e) {
+            throw new SecurityException(String.format("Error [%s] deserializing JSON to Object [%s]", e.getMessage(),
+                    ENVELOPE_TYPE.getClass().getName()), e);
+        }
+    }
+
+    /**
+     * Sets how {@link #verifyAndDecodeAsJson(String)} produces its result. Defaults to
+     * {@link JsonMode#VALIDATE}.
+     */
+    public void setJsonMode(JsonMode jsonMode) {
+        if (jsonMode == null) {
+            throw new IllegalArgumentException("jsonMode is null");
+        }
+        this.jsonMode = jsonMode;
+    }
+
+    public JsonMode getJsonMode() {
+        return jsonMode;
+    }
+
+    /**
+     * Verifies and decodes the signed request on the verifier's executor.
+     *
+     * @see #verifyAndDecode(String)
+     * @see #setExecutor(Executor)
+     */
+    public CompletableFuture<CanvasRequest> verifyAndDecodeAsync(String input) {
+        return verifyAndDecodeAsync(input, executor());
+    }
+
+    public CompletableFuture<CanvasRequest> verifyAndDecodeAsync(final String input, Executor executor) {
+        return CompletableFuture.supplyAsync(new Supplier<CanvasRequest>() {
+            @Override
+            public CanvasRequest get() {
+                return verifyAndDecode(input);
+            }
+        }, executor);
+    }
+
+    /**
+     * Verifies the signed request and decodes it as a JSON string on the verifier's executor.
+     *
+     * @see #verifyAndDecodeAsJson(String)
+     * @see #setExecutor(Executor)
+     */
+    public CompletableFuture<String> verifyAndDecodeAsJsonAsync(String input) {
+        return verifyAndDecodeAsJsonAsync(input, executor());
+    }
+
+    public CompletableFuture<String> verifyAndDecodeAsJsonAsync(final String input, Executor executor) {
+        return CompletableFuture.supplyAsync(new Supplier<String>() {
+            @Override
+            public String get() {
+                return verifyAndDecodeAsJson(input);
+            }
+        }, executor);
+    }
+
+    /**
+     * Verifies and decodes a batch of signed requests in parallel on the verifier's executor. Each
+     * request gets its own future, in the same order as the inputs, so one bad request does not hide
+     * the outcome of the others. Combine them with {@link CompletableFuture#allOf} to wait for all.
+     */
+    public List<CompletableFuture<CanvasRequest>> verifyAndDecodeAsync(List<String> inputs) {
+        Executor executor = executor();
+        List<CompletableFuture<CanvasRequest>> futures = new ArrayList<CompletableFuture<CanvasRequest>>(inputs.size());
+        for (String input : inputs) {
+            futures.add(verifyAndDecodeAsync(input, executor));
+        }
+        return futures;
+    }
+
+    /**
+     * Verifies a batch of signed requests in parallel and decodes each as a JSON string.
+     *
+     * @see #verifyAndDecodeAsync(List)
+     */
+    public List<CompletableFuture<String>> verifyAndDecodeAsJsonAsync(List<String> inputs) {
+        Executor executor = executor();
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>(inputs.size());
+        for (String input : inputs) {
+            futures.add(verifyAndDecodeAsJsonAsync(input, executor));
+        }
+        return futures;
+    }
+
+    /**
+     * Sets the executor the async methods run on. When none is set they share a pool with one daemon
+     * thread per processor, which runs work on the calling thread once its queue is full.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    private Executor executor() {
+        Executor executor = this.executor;
+        return executor != null ? executor : DefaultExecutor.INSTANCE;
+    }
+
+    /**
+     * Puts a cache of verified requests in front of {@link #verifyAndDecode(String)}, or removes it
+     * when null. A cache may be shared between verifiers with different secrets.
+     */
+    public void setCache(SignedRequestCache cache) {
+        this.cache = cache;
+    }
+
+    public SignedRequestCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return the number of requests that passed signature verification. Requests served from the
+     * cache are not verified again and are not counted.
+     */
+    public long getVerifiedCount() {
+        return verified.get();
+    }
+
+    /**
+     * @return the number of verified requests that did not match the preferred key of the key ring
+     * and needed more than one MAC.
+     */
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    public SignedRequestKeyRing getKeyRing() {
+        return keyRing;
+    }
+
+    /**
+     * @return the id of the key that verified the last request on the calling thread, or null if that
+     * request failed verification or was served from the cache.
+     */
+    public String getMatchedKeyId() {
+        return workspaces.get().matchedKeyId;
+    }
+
+    /**
+     * @return the number of requests rejected because they were not a well formed signed request. These
+     * are rejected before the envelope is deserialized.
+     */
+    public long getMalformedCount() {
+        return malformed.get();
+    }
+
+    /**
+     * @return the number of requests rejected because the signature did not match. These are rejected
+     * before the envelope is deserialized.
+     */
+    public long getTamperedCount() {
+        return tampered.get();
+    }
+
+    /**
+     * @return the total number of requests rejected before the envelope was deserialized.
+     */
+    public long getRejectedBeforeParseCount() {
+        return malformed.get() + tampered.get();
+    }
+
+    /**
+     * @return true if this verifier accepts exactly the given secret.
+     */
+    boolean hasSecret(String secret) {
+        return keyRing.holdsOnly(secret);
+    }
+
+    /**
+     * Checks the signature over the encoded envelope and leaves the decoded envelope in the thread's
+     * workspace. Only the algorithm is read from the envelope before the signature is checked, so
+     * forged and malformed requests never reach the object mapper.
+     */
+    private Workspace verifyEnvelope(String input) throws SecurityException {
+
+        Workspace workspace = workspaces.get();
+        workspace.release();
+        workspace.matchedKeyId = null;
+        String algorithm;
+        int sigLength;
+        try {
+            int separator = input == null ? -1 : input.indexOf('.');
+            if (separator <= 0) {
+                throw new SecurityException(String.format("Input [%s] doesn't look like a signed request", input));
+            }
+
+            // The encoded form is plain ASCII, so one byte per char is exact and is what the MAC is over.
+            int encodedLength = input.length() - separator - 1;
+            byte[] encoded = workspace.encoded(encodedLength);
+            for (int i = 0; i < encodedLength; i++) {
+                char c = input.charAt(separator + 1 + i);
+                if (c > 0x7f) {
+                    throw new SecurityException(String.format("Input [%s] doesn't look like a signed request", input));
+                }
+                encoded[i] = (byte) c;
+            }
+            workspace.encodedLength = encodedLength;
+
+            byte[] envelope = workspace.envelope(Base64Url.maxDecodedLength(encodedLength));
+            workspace.envelopeLength = Base64Url.decode(encoded, 0, encodedLength, envelope);
+
+            byte[] sigChars = workspace.signatureChars(separator);
+            for (int i = 0; i < separator; i++) {
+                char c = input.charAt(i);
+                if (c > 0x7f) {
+                    throw new SecurityException(String.format("Input [%s] doesn't look like a signed request", input));
+                }
+                sigChars[i] = (byte) c;
+            }
+            byte[] signature = workspace.signature(Base64Url.maxDecodedLength(separator));
+            sigLength = Base64Url.decode(sigChars, 0, separator, signature);
+
+            algorithm = this.algorithm != null ? this.algorithm
+                    : scanAlgorithm(envelope, workspace.envelopeLength);
+        } catch (SecurityException e) {
+            malformed.incrementAndGet();
+            throw e;
+        }
+
+        verify(workspace, algorithm, sigLength);
+        verified.incrementAndGet();
+        return workspace;
+    }
+
+    /**
+     * Walks every token of the envelope without building anything, to make sure it is a single
+     * well formed JSON object.
+     */
+    private static void validate(byte[] envelope, int length) throws IOException {
+        JsonParser parser = MAPPER.getFactory().createParser(envelope, 0, length);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Signed request envelope is not a JSON object");
+            }
+            parser.skipChildren();
+            if (parser.nextToken() != null) {
+                throw new JsonParseException(parser, "Unexpected content after the signed request envelope");
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Reads the top level algorithm field with a token scan, skipping over every other value.
+     */
+    private static String scanAlgorithm(byte[] envelope, int length) throws SecurityException {
+        try {
+            JsonParser parser = MAPPER.getFactory().createParser(envelope, 0, length);
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new SecurityException("Signed request envelope is not a JSON object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if ("algorithm".equals(name)) {
+                        return value == JsonToken.VALUE_STRING ? parser.getText() : DEFAULT_ALGORITHM;
+                    }
+                    parser.skipChildren();
+                }
+                return DEFAULT_ALGORITHM;
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            throw new SecurityException(String.format("Error [%s] scanning JSON envelope for algorithm", e.getMessage()), e);
+        }
+    }
+
+    private void verify(Workspace workspace, String algorithm, int sigLength)
+        throws SecurityException
+    {
+        // Check to see if the body was tampered with. The key that matched last time almost always
+        // matches again, the others only get a turn while a secret is being rotated.
+        SignedRequestKeyRing.Key preferred = keyRing.getPreferred();
+        if (preferred == null) {
+            throw new SecurityException("No consumer secret to verify the signed request with");
+        }
+        if (signedWith(workspace, preferred, algorithm, sigLength)) {
+            matched(workspace, preferred);
+            return;
+        }
+        for (SignedRequestKeyRing.Key key : keyRing.getKeys()) {
+            if (key != preferred && signedWith(workspace, key, algorithm, sigLength)) {
+                fallbacks.incrementAndGet();
+                matched(workspace, key);
+                return;
+            }
+        }
+
+        tampered.incrementAndGet();
+        String label = "Warning: Request was tampered with";
+        throw new SecurityException(label);
+    }
+
+    private void matched(Workspace workspace, SignedRequestKeyRing.Key key) {
+        keyRing.matched(key);
+        workspace.matchedKeyId = key.id;
+    }
+
+    private static boolean signedWith(Workspace workspace, SignedRequestKeyRing.Key key, String algorithm, int sigLength)
+        throws SecurityException
+    {
+        Mac mac = key.mac(algorithm);
+        byte[] digest = workspace.digest(mac.getMacLength());
+        try {
+            mac.update(workspace.encoded, 0, workspace.encodedLength);
+            mac.doFinal(digest, 0);
+        } catch (ShortBufferException e) {
+            throw new SecurityException(String.format("Problem with algorithm [%s] Error [%s]", algorithm, e.getMessage()), e);
+        }
+        return matches(digest, mac.getMacLength(), workspace.signature, sigLength);
+    }
+
+    /**
+     * Compares in time independent of where the first difference is.
+     */
+    private static boolean matches(byte[] digest, int digestLength, byte[] signature, int sigLength) {
+        if (digestLength != sigLength) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < digestLength; i++) {
+            diff |= digest[i] ^ signature[i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * How {@link #verifyAndDecodeAsJson(String)} turns a verified envelope into the returned string.
+     */
+    public enum JsonMode {
+        /**
+         * Binds the envelope to a map and writes it out again. This normalizes the JSON but costs a
+         * full parse and serialization per request.
+         */
+        REWRITE,
+        /**
+         * Returns the envelope as it was signed after a streaming pass has checked that it is well
+         * formed JSON. Nothing is materialized.
+         */
+        VALIDATE,
+        /**
+         * Returns the envelope as it was signed. The signature already proves it came from Salesforce.
+         */
+        PASS_THROUGH
+    }
+
+    /**
+     * The shared pool for the async methods, created on first use.
+     */
+    private static final class DefaultExecutor {
+
+        static final Executor INSTANCE;
+
+        static {
+            int threads = Runtime.getRuntime().availableProcessors();
+            final AtomicInteger count = new AtomicInteger();
+            INSTANCE = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(1024),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "signed-request-verifier-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+    }
+
+    /**
+     * Per-thread scratch space. Buffers grow to fit the request being verified. Anything grown past
+     * a limit is dropped again on the next request rather than staying pinned to the thread.
+     */
+    private static final class Workspace {
+
+        private static final int MAX_RETAINED = 64 * 1024;
+
+        byte[] encoded    = new byte[2048];
+        byte[] envelope   = new byte[2048];
+        byte[] sigChars   = new byte[128];
+        byte[] signature  = new byte[128];
+        byte[] digest     = new byte[64];
+        int    encodedLength;
+        int    envelopeLength;
+        String matchedKeyId;
+
+        byte[] encoded(int length) {
+            return encoded = fit(encoded, length);
+        }
+
+        byte[] envelope(int length) {
+            return envelope = fit(envelope, length);
+        }
+
+        byte[] signatureChars(int length) {
+            return sigChars = fit(sigChars, length);
+        }
+
+        byte[] signature(int length) {
+            return signature = fit(signature, length);
+        }
+
+        byte[] digest(int length) {
+            return digest = fit(digest, length);
+        }
+
+        void release() {
+            if (encoded.length > MAX_RETAINED) {
+                encoded = new byte[2048];
+            }
+            if (envelope.length > MAX_RETAINED) {
+                envelope = new byte[2048];
+            }
+            if (sigChars.length > MAX_RETAINED) {
+                sigChars = new byte[128];
+            }
+            if (signature.length > MAX_RETAINED) {
+                signature = new byte[128];
+            }
+        }
+
+        private static byte[] fit(byte[] buffer, int length) {
+            if (buffer.length >= length) {
+                return buffer;
+            }
+            return new byte[length];
+        }
+    }
+}
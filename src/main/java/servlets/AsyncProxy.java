@@ -0,0 +1,935 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import org.apache.http.ContentTooLongException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.entity.ContentBufferEntity;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SimpleInputBuffer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * The non-blocking half of the {@link ProxyServlet}. The request body is read with a {@link ReadListener},
+ * the upstream call runs on the I/O reactor of an async HTTP client and the response is written with a
+ * {@link WriteListener}, so no container thread is held while the upstream is working. A handful of
+ * reactor threads carry every proxied call that is in flight.
+ * <p>
+ * Request and response bodies are buffered in memory on the way through, which suits the JSON REST
+ * traffic the proxy carries. Bodies of more than maxBodyBytes are turned away rather than buffered: a
+ * request with a 413, a response with a 502. Responses are decoded, rewritten and compressed on a
+ * container thread, so the reactor threads only move bytes.
+ */
+class AsyncProxy {
+
+    static final String IN_FLIGHT = "async.in_flight";
+    static final String REQUESTS  = "async.requests";
+    static final String FAILURES  = "async.failures";
+    static final String FALLBACKS = "async.fallbacks";
+    static final String TOO_LARGE = "async.too_large";
+
+    private final CloseableHttpAsyncClient client;
+    private final ProxyMetrics metrics;
+    private final BufferPool bufferPool;
+    private final ResponseCache responseCache;
+    private final SingleFlight singleFlight;
+    private final Compression compression;
+    private final Bulkhead bulkhead;
+    private final LoadBalancer loadBalancer;
+    private final int retries;
+    private final Hedging hedging;
+    private final HeaderPolicy headerPolicy;
+    private final ResponseTransform responseTransform;
+    private final PagePrefetch pagePrefetch;
+    private final long timeout;
+    private final int maxBodyBytes;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    AsyncProxy(int maxConnectionsPerHost, int maxTotalConnections, int connectionTimeout, int readTimeout,
+               int connectionWaitTimeout, boolean followRedirects, BufferPool bufferPool, ResponseCache responseCache,
+               SingleFlight singleFlight, Compression compression, Bulkhead bulkhead,
+               LoadBalancer loadBalancer, int retries, Hedging hedging, HeaderPolicy headerPolicy,
+               ResponseTransform responseTransform, PagePrefetch pagePrefetch, long timeout, int maxBodyBytes,
+               ProxyMetrics metrics) {
+        this.metrics = metrics;
+        this.bufferPool = bufferPool;
+        this.responseCache = responseCache;
+        this.singleFlight = singleFlight;
+        this.compression = compression;
+        this.bulkhead = bulkhead;
+        this.loadBalancer = loadBalancer;
+        this.retries = retries;
+        this.hedging = hedging;
+        this.headerPolicy = headerPolicy;
+        this.responseTransform = responseTransform;
+        this.pagePrefetch = pagePrefetch;
+        this.timeout = timeout;
+        this.maxBodyBytes = maxBodyBytes;
+        this.client = HttpAsyncClients.custom()
+                .setMaxConnPerRoute(maxConnectionsPerHost)
+                .setMaxConnTotal(maxTotalConnections)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectionTimeout)
+                        .setSocketTimeout(readTimeout)
+                        .setConnectionRequestTimeout(connectionWaitTimeout)
+                        .setRedirectsEnabled(followRedirects)
+                        .build())
+                // Shared by every user of the proxy, see ProxyServlet.
+                .disableCookieManagement()
+                .build();
+        this.client.start();
+        metrics.register(IN_FLIGHT, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return inFlight.get();
+            }
+        });
+    }
+
+    void shutdown() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Shutting down anyway.
+        }
+    }
+
+    /**
+     * Starts proxying the request and returns straight away. The async context is completed once the
+     * response has been written.
+     *
+     * @param target the request's path and query, which are appended to the remote host's URL.
+     * @param cacheKey the key the response is cached under, or null if the request bypasses the cache.
+     * @param cached the stale entry to revalidate, or null.
+     * @param flight the flight the request leads or follows, or null if it isn't collapsed.
+     * @param batched the request's place in a batch, or null if it isn't batched.
+     */
+    void invoke(String verb, HttpServletRequest request, HttpServletResponse response, String target,
+                String cacheKey, ResponseCache.Entry cached, SingleFlight.Flight flight,
+                CompositeBatch.Call batched) throws IOException {
+        Exchange exchange = new Exchange(request.startAsync(request, response), request, response, cacheKey, cached,
+                flight);
+        metrics.increment(REQUESTS);
+        inFlight.incrementAndGet();
+
+        if (flight != null && !flight.isLeader()) {
+            exchange.follow(verb, target);
+        } else if (batched != null) {
+            exchange.batch(verb, target, batched);
+        } else {
+            exchange.proxy(verb, target);
+        }
+    }
+
+    /**
+     * Sends a batch upstream as one Composite Batch call.
+     *
+     * @param headers the leader's request headers.
+     */
+    private void sendBatch(final AsyncContext context, final CompositeBatch.Batch batch, Header[] headers) {
+        byte[] body = batch.close();
+        if (body == null) {
+            return;
+        }
+        // Turned away, the calls go upstream on their own and are turned away one by one.
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            batch.complete(0, null);
+            return;
+        }
+        final LoadBalancer.Host host = loadBalancer.choose(Collections.<LoadBalancer.Host>emptyList());
+        try {
+            if (host == null) {
+                throw new CircuitBreaker.OpenException(loadBalancer.getRetryAfterSeconds());
+            }
+            host.acquire();
+        } catch (CircuitBreaker.OpenException e) {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+            batch.complete(0, null);
+            return;
+        }
+
+        URI uri = URI.create(host.getUrl() + batch.getPath());
+        BasicHttpEntityEnclosingRequest upstream = new BasicHttpEntityEnclosingRequest("POST", uri.getRawPath());
+        upstream.setHeaders(headers);
+        upstream.removeHeaders("Content-Type");
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        entity.setContentType("application/json");
+        upstream.setEntity(entity);
+
+        final long started = System.nanoTime();
+        host.started();
+        client.execute(HttpAsyncMethods.create(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()), upstream),
+                new BoundedResponseConsumer(maxBodyBytes), new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(final HttpResponse response) {
+                        start(context, new Runnable() {
+                            @Override
+                            public void run() {
+                                answer(response);
+                            }
+                        });
+                    }
+
+                    private void answer(HttpResponse response) {
+                        int status = response.getStatusLine().getStatusCode();
+                        byte[] answer = null;
+                        try {
+                            HttpEntity entity = response.getEntity();
+                            if (entity != null) {
+                                InputStream in = entity.getContent();
+                                Header contentEncoding = response.getFirstHeader("Content-Encoding");
+                                if (contentEncoding != null && compression != null) {
+                                    in = compression.decode(contentEncoding.getValue(), in);
+                                }
+                                ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                                bufferPool.copy(in, decoded);
+                                answer = decoded.toByteArray();
+                            }
+                        } catch (IOException e) {
+                            // The calls go on their own.
+                        }
+                        finish(LoadBalancer.isHostFailure(status), status >= 500);
+                        batch.complete(status, answer);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        boolean tooLarge = e instanceof ContentTooLongException;
+                        if (tooLarge) {
+                            metrics.increment(TOO_LARGE);
+                        }
+                        finish(!tooLarge, !tooLarge);
+                        batch.complete(0, null);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        finish(true, true);
+                        batch.complete(0, null);
+                    }
+
+                    private void finish(boolean hostFailure, boolean failed) {
+                        long elapsed = System.nanoTime() - started;
+                        host.finished(hostFailure, elapsed);
+                        host.record(failed, elapsed);
+                        if (bulkhead != null) {
+                            bulkhead.release();
+                        }
+                    }
+                });
+    }
+
+    private void copyRequestHeaders(HttpServletRequest request, final HttpRequest upstream) {
+        headerPolicy.copyRequestHeaders(request, new HeaderPolicy.Sink() {
+            @Override
+            public void add(String name, String value) {
+                upstream.addHeader(name, value);
+            }
+        });
+        if (compression != null && request.getHeader("Range") == null) {
+            upstream.setHeader("Accept-Encoding", Compression.ACCEPT_ENCODING);
+        }
+    }
+
+    /**
+     * One proxied call. The reactor, the read and write listeners and the container's timeout can all race
+     * to finish it, so only the first one gets to; the container recycles the request and response as soon
+     * as the async context completes, and nothing may touch them after that.
+     */
+    private class Exchange implements AsyncListener {
+
+        private final AsyncContext context;
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final String cacheKey;
+        private final ResponseCache.Entry cached;
+        private final SingleFlight.Flight flight;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final AtomicBoolean settled = new AtomicBoolean();
+        private final AtomicBoolean answered = new AtomicBoolean();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final List<LoadBalancer.Host> tried = new CopyOnWriteArrayList<LoadBalancer.Host>();
+        private final List<Attempt> attempts = new CopyOnWriteArrayList<Attempt>();
+        private volatile boolean admitted;
+        private volatile boolean hedged;
+        private volatile long started;
+        private volatile String verb;
+        private volatile String target;
+        private volatile Header[] headers;
+        private volatile HttpEntity entity;
+
+        Exchange(AsyncContext context, HttpServletRequest request, HttpServletResponse response, String cacheKey,
+                 ResponseCache.Entry cached, SingleFlight.Flight flight) {
+            this.context = context;
+            this.request = request;
+            this.response = response;
+            this.cacheKey = cacheKey;
+            this.cached = cached;
+            this.flight = flight;
+            context.setTimeout(timeout);
+            context.addListener(this);
+        }
+
+        void proxy(String verb, String target) throws IOException {
+            if (!admit()) {
+                return;
+            }
+            this.verb = verb;
+            this.target = target;
+            this.hedged = hedging != null && Hedging.VERBS.contains(verb);
+            // Retries and hedges are sent from other threads, which mustn't touch the request.
+            BasicHttpRequest template = new BasicHttpRequest(verb, target);
+            copyRequestHeaders(request, template);
+            if (cached != null) {
+                String[] validators = responseCache.validators(cached);
+                for (int i = 0; i < validators.length; i += 2) {
+                    template.setHeader(validators[i], validators[i + 1]);
+                }
+            }
+            this.headers = template.getAllHeaders();
+
+            if (verb.equals("PUT") || verb.equals("PATCH") || verb.equals("POST")) {
+                readBody(request);
+            } else {
+                if (begin() && hedged) {
+                    scheduleHedge();
+                }
+            }
+        }
+
+        /**
+         * Waits for the batch to be answered without holding a thread, then answers with the request's
+         * sub-response or, if it has none, goes upstream after all. The leader sends the batch once its
+         * window is over.
+         */
+        void batch(final String verb, final String target, final CompositeBatch.Call call) {
+            if (call.isLeader()) {
+                // Taken now, while the request can still be read.
+                BasicHttpRequest template = new BasicHttpRequest("POST", target);
+                copyRequestHeaders(request, template);
+                final Header[] headers = template.getAllHeaders();
+                call.getBatch().whenReady(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendBatch(context, call.getBatch(), headers);
+                    }
+                });
+            }
+            call.getResponse().whenComplete(new BiConsumer<BufferedResponse, Throwable>() {
+                @Override
+                public void accept(final BufferedResponse answer, Throwable t) {
+                    // Completed by whichever thread answered the batch, possibly a reactor thread.
+                    start(context, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (finished.get()) {
+                                return;
+                            }
+                            try {
+                                if (answer != null) {
+                                    if (flight != null) {
+                                        flight.complete(answer);
+                                    }
+                                    send(answer);
+                                } else {
+                                    proxy(verb, target);
+                                }
+                            } catch (IOException e) {
+                                fail(HttpServletResponse.SC_BAD_GATEWAY);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Waits for the flight's leader without holding a thread, then answers with the leader's response or,
+         * if it has none to share, goes upstream after all.
+         */
+        void follow(final String verb, final String target) {
+            flight.getResponse().whenComplete(new BiConsumer<BufferedResponse, Throwable>() {
+                @Override
+                public void accept(final BufferedResponse shared, Throwable t) {
+                    // Completed by the leader, possibly on a reactor thread.
+                    start(context, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (finished.get()) {
+                                return;
+                            }
+                            try {
+                                if (shared != null) {
+                                    send(shared);
+                                } else {
+                                    proxy(verb, target);
+                                }
+                            } catch (IOException e) {
+                                fail(HttpServletResponse.SC_BAD_GATEWAY);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        void readBody(final HttpServletRequest request) throws IOException {
+            if (request.getContentLengthLong() > maxBodyBytes) {
+                metrics.increment(TOO_LARGE);
+                fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
+            }
+            final ServletInputStream in = request.getInputStream();
+            final ByteArrayOutputStream body = new ByteArrayOutputStream(Math.max(request.getContentLength(), 0));
+            final String contentType = request.getContentType();
+            in.setReadListener(new ReadListener() {
+                private byte[] buffer = bufferPool.acquire();
+
+                @Override
+                public void onDataAvailable() throws IOException {
+                    while (buffer != null && in.isReady()) {
+                        int len = in.read(buffer);
+                        if (len < 0) {
+                            return;
+                        }
+                        if (body.size() + len > maxBodyBytes) {
+                            // Sent chunked, so the length only shows once the body has run over.
+                            releaseBuffer();
+                            metrics.increment(TOO_LARGE);
+                            fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                            return;
+                        }
+                        body.write(buffer, 0, len);
+                    }
+                }
+
+                @Override
+                public void onAllDataRead() {
+                    if (buffer == null) {
+                        return;
+                    }
+                    releaseBuffer();
+                    ByteArrayEntity entity = new ByteArrayEntity(body.toByteArray());
+                    if (contentType != null) {
+                        entity.setContentType(contentType);
+                    }
+                    Exchange.this.entity = entity;
+                    begin();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    if (buffer != null) {
+                        releaseBuffer();
+                    }
+                    fail(HttpServletResponse.SC_BAD_GATEWAY);
+                }
+
+                private void releaseBuffer() {
+                    bufferPool.release(buffer);
+                    buffer = null;
+                }
+            });
+        }
+
+        /**
+         * Sends the request upstream for the first time, or answers with a 503 if every host's breaker is open.
+         *
+         * @return whether the request was sent.
+         */
+        private boolean begin() {
+            if (attempt(false)) {
+                return true;
+            }
+            fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, loadBalancer.getRetryAfterSeconds());
+            return false;
+        }
+
+        /**
+         * Sends the request to the host the balancer picks next. A hedge goes to the same host as the first
+         * call when there is no other.
+         *
+         * @return false if there was no host left whose breaker let the request through.
+         */
+        boolean attempt(boolean hedge) {
+            LoadBalancer.Host host = loadBalancer.choose(tried);
+            if (host == null && hedge) {
+                host = tried.get(0);
+            }
+            try {
+                if (host == null) {
+                    return false;
+                }
+                host.acquire();
+            } catch (CircuitBreaker.OpenException e) {
+                return false;
+            }
+            if (!tried.contains(host)) {
+                tried.add(host);
+            }
+            URI uri = URI.create(host.getUrl() + target);
+            HttpHost httpHost = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+            String path = uri.getRawQuery() == null ? uri.getRawPath() : uri.getRawPath() + "?" + uri.getRawQuery();
+
+            HttpRequest upstream;
+            if (entity != null) {
+                BasicHttpEntityEnclosingRequest withBody = new BasicHttpEntityEnclosingRequest(verb, path);
+                withBody.setEntity(entity);
+                upstream = withBody;
+            } else {
+                upstream = new BasicHttpRequest(verb, path);
+            }
+            upstream.setHeaders(headers);
+
+            Attempt attempt = new Attempt(this, host, hedge);
+            if (started == 0) {
+                started = attempt.started;
+            }
+            attempts.add(attempt);
+            outstanding.incrementAndGet();
+            host.started();
+            attempt.call = client.execute(HttpAsyncMethods.create(httpHost, upstream),
+                    new BoundedResponseConsumer(maxBodyBytes), attempt);
+            return true;
+        }
+
+        /**
+         * Sends a second copy of the request if the first hasn't been answered within the hedging delay.
+         */
+        private void scheduleHedge() {
+            hedging.requested();
+            long delay = hedging.getDelayNanos();
+            if (delay == Long.MAX_VALUE) {
+                return;
+            }
+            hedging.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!answered.get() && !finished.get() && outstanding.get() > 0 && hedging.tryHedge()) {
+                        attempt(true);
+                    }
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Sends the request to another host if the last one failed it, it may be sent again and another host's
+         * breaker lets it through.
+         *
+         * @return true if the request was sent again.
+         */
+        private boolean retry() {
+            if (finished.get() || !LoadBalancer.RETRYABLE_VERBS.contains(verb) || tried.size() > retries
+                    || tried.size() >= loadBalancer.getHosts().size()) {
+                return false;
+            }
+            if (!attempt(false)) {
+                return false;
+            }
+            metrics.increment(LoadBalancer.RETRIES);
+            return true;
+        }
+
+        /**
+         * Runs on a reactor thread. The first good answer wins; any other call still in flight is cancelled.
+         */
+        void completed(Attempt attempt, final HttpResponse upstream) {
+            int status = upstream.getStatusLine().getStatusCode();
+            boolean hostFailure = LoadBalancer.isHostFailure(status);
+            long elapsed = System.nanoTime() - attempt.started;
+            attempt.host.finished(hostFailure, elapsed);
+            attempt.host.record(status >= 500, elapsed);
+            if (hedged && !hostFailure) {
+                hedging.attempted(elapsed);
+            }
+            if (outstanding.decrementAndGet() > 0 && hostFailure) {
+                // The other call may still do better.
+                return;
+            }
+            if (answered.get() || (hostFailure && retry()) || !answered.compareAndSet(false, true)) {
+                return;
+            }
+            for (Attempt other : attempts) {
+                if (other != attempt && other.call != null) {
+                    other.call.cancel(true);
+                }
+            }
+            if (hedged) {
+                hedging.answered(System.nanoTime() - started, attempt.hedge);
+            }
+
+            settle();
+            start(context, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        respond(upstream);
+                    } catch (IOException e) {
+                        fail(HttpServletResponse.SC_BAD_GATEWAY);
+                    }
+                }
+            });
+        }
+
+        void failed(Attempt attempt, Exception e) {
+            // A call that timed out waiting for a pooled connection never got as far as the host, and one
+            // whose answer was too large to buffer got there fine.
+            boolean leased = !(e instanceof ConnectionPoolTimeoutException || e instanceof TimeoutException);
+            boolean tooLarge = e instanceof ContentTooLongException;
+            long elapsed = System.nanoTime() - attempt.started;
+            attempt.host.finished(leased && !tooLarge, elapsed);
+            if (leased) {
+                attempt.host.record(!tooLarge, elapsed);
+            } else {
+                attempt.host.release();
+            }
+            if (tooLarge) {
+                metrics.increment(TOO_LARGE);
+            }
+            if (outstanding.decrementAndGet() > 0 || answered.get() || (!tooLarge && retry())) {
+                return;
+            }
+            if (!leased) {
+                fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, 1);
+                return;
+            }
+            settle();
+            fail(HttpServletResponse.SC_BAD_GATEWAY);
+        }
+
+        void cancelled(Attempt attempt) {
+            // Losing to the other call says nothing about the host; being cut off by the timeout does.
+            boolean lost = answered.get();
+            long elapsed = System.nanoTime() - attempt.started;
+            attempt.host.finished(!lost, elapsed);
+            if (lost) {
+                attempt.host.release();
+            } else {
+                attempt.host.record(true, elapsed);
+            }
+            if (outstanding.decrementAndGet() > 0 || answered.get()) {
+                return;
+            }
+            settle();
+            fail(HttpServletResponse.SC_BAD_GATEWAY);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            settle();
+            fail(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            for (Attempt attempt : attempts) {
+                if (attempt.call != null) {
+                    attempt.call.cancel(true);
+                }
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            fail(HttpServletResponse.SC_BAD_GATEWAY);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        /**
+         * Runs on a container thread.
+         */
+        private void respond(HttpResponse upstream) throws IOException {
+            BufferedResponse buffered = new BufferedResponse(upstream.getStatusLine().getStatusCode());
+            for (Header header : upstream.getAllHeaders()) {
+                buffered.addHeader(header.getName(), header.getValue());
+            }
+            HttpEntity entity = upstream.getEntity();
+            if (entity != null) {
+                buffered.setBody(EntityUtils.toByteArray(entity));
+            }
+            if (finished.get()) {
+                return;
+            }
+
+            if (cacheKey != null) {
+                if (cached != null && buffered.getStatus() == HttpServletResponse.SC_NOT_MODIFIED) {
+                    buffered = responseCache.revalidated(cacheKey, cached, buffered, request);
+                } else {
+                    responseCache.miss();
+                    responseCache.store(cacheKey, buffered, request);
+                }
+            }
+            if (flight != null) {
+                flight.complete(buffered.getBody().length <= singleFlight.getMaxResponseBytes() ? buffered : null);
+            }
+            send(buffered);
+        }
+
+        /**
+         * Hands the body to a write listener rather than blocking the calling thread on it.
+         */
+        private void send(BufferedResponse buffered) throws IOException {
+            if (pagePrefetch != null) {
+                pagePrefetch.follow(request, buffered);
+            }
+            if (responseTransform != null
+                    && responseTransform.applies(request, buffered.getStatus(), buffered.getHeader("Content-Type"))) {
+                buffered = buffered.transform(request, responseTransform, compression);
+            }
+            if (compression != null) {
+                buffered = compression.apply(request, buffered, bufferPool.getBufferSize());
+            }
+            buffered.writeHeaders(request, response, headerPolicy);
+            final byte[] body = buffered.getBody();
+            if (body.length == 0) {
+                complete();
+                return;
+            }
+
+            final ServletOutputStream out = response.getOutputStream();
+            out.setWriteListener(new WriteListener() {
+                private int written;
+
+                @Override
+                public void onWritePossible() throws IOException {
+                    while (out.isReady()) {
+                        if (written == body.length) {
+                            complete();
+                            return;
+                        }
+                        int len = Math.min(bufferPool.getBufferSize(), body.length - written);
+                        out.write(body, written, len);
+                        written += len;
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    fail(HttpServletResponse.SC_BAD_GATEWAY);
+                }
+            });
+        }
+
+        private void complete() {
+            settle();
+            if (finished.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                context.complete();
+            }
+        }
+
+        /**
+         * Lets the call go upstream, or answers it with a 503 if the bulkhead is full.
+         */
+        private boolean admit() {
+            if (bulkhead != null && !bulkhead.tryAcquire()) {
+                fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, 1);
+                return false;
+            }
+            admitted = true;
+            return true;
+        }
+
+        /**
+         * Ends a call {@link #admit} let through, the first time it's called.
+         */
+        private void settle() {
+            if (!admitted || !settled.compareAndSet(false, true)) {
+                return;
+            }
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        }
+
+        private void fail(int status) {
+            fail(status, 0);
+        }
+
+        private void fail(int status, long retryAfterSeconds) {
+            settle();
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            inFlight.decrementAndGet();
+            metrics.increment(FAILURES);
+            if (flight != null) {
+                flight.complete(null);
+            }
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(status);
+                if (retryAfterSeconds > 0) {
+                    response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+                }
+            }
+            context.complete();
+        }
+    }
+
+    /**
+     * Runs work that decodes, rewrites or compresses a body on a container thread, since every call in flight
+     * shares the reactor threads. Once the exchange is over the work is run where it is, and finds nothing
+     * left to do.
+     */
+    private static void start(AsyncContext context, Runnable work) {
+        try {
+            context.start(work);
+        } catch (IllegalStateException e) {
+            work.run();
+        }
+    }
+
+    /**
+     * Buffers a response in memory like the client's own consumer does, but gives up on one that is longer
+     * than {@code maxBytes}, which fails the call with a {@link ContentTooLongException}.
+     */
+    private static final class BoundedResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+        private final int maxBytes;
+        private volatile HttpResponse response;
+        private volatile SimpleInputBuffer buffer;
+
+        private BoundedResponseConsumer(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+            long length = entity.getContentLength();
+            if (length > maxBytes) {
+                throw new ContentTooLongException("Response body of " + length + " bytes is over the limit");
+            }
+            buffer = new SimpleInputBuffer(length < 0 ? 4096 : (int) length, HeapByteBufferAllocator.INSTANCE);
+            response.setEntity(new ContentBufferEntity(entity, buffer));
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl control) throws IOException {
+            buffer.consumeContent(decoder);
+            if (buffer.length() > maxBytes) {
+                throw new ContentTooLongException("Response body is over the limit of " + maxBytes + " bytes");
+            }
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) {
+            return response;
+        }
+
+        @Override
+        protected void releaseResources() {
+            response = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * One upstream call made for an exchange. There is more than one when the request is retried on
+     * another host or hedged.
+     */
+    private static final class Attempt implements FutureCallback<HttpResponse> {
+
+        private final Exchange exchange;
+        private final LoadBalancer.Host host;
+        private final boolean hedge;
+        private final long started = System.nanoTime();
+        private volatile Future<HttpResponse> call;
+
+        private Attempt(Exchange exchange, LoadBalancer.Host host, boolean hedge) {
+            this.exchange = exchange;
+            this.host = host;
+            this.hedge = hedge;
+        }
+
+        @Override
+        public void completed(HttpResponse upstream) {
+            exchange.completed(this, upstream);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            exchange.failed(this, e);
+        }
+
+        @Override
+        public void cancelled() {
+            exchange.cancelled(this);
+        }
+    }
+}
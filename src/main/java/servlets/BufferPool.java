@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of {@code buffer_size} byte arrays shared by every call the {@link ProxyServlet} makes, so
+ * copying bodies doesn't allocate a fresh buffer per request. The pool never blocks: when it runs dry a new
+ * buffer is allocated, and buffers handed back to a full pool are left to the garbage collector.
+ */
+final class BufferPool {
+
+    static final String ALLOCATED = "buffers.allocated";
+    static final String POOLED    = "buffers.pooled";
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+    private final ProxyMetrics metrics;
+
+    BufferPool(int bufferSize, int capacity, ProxyMetrics metrics) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<byte[]>(Math.max(1, capacity));
+        this.metrics = metrics;
+        metrics.register(POOLED, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return buffers.size();
+            }
+        });
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            metrics.increment(ALLOCATED);
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Copies the whole stream with one pooled buffer, a buffer-full at a time.
+     *
+     * @return the number of bytes copied.
+     */
+    long copy(InputStream in, OutputStream out) throws IOException {
+        return copy(in, out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Copies the stream until it ends or at least {@code limit} bytes have been copied, whichever comes first.
+     * The copy can overshoot the limit by up to a buffer-full.
+     *
+     * @return the number of bytes copied.
+     */
+    long copy(InputStream in, OutputStream out, long limit) throws IOException {
+        byte[] buffer = acquire();
+        try {
+            long total = 0;
+            int len;
+            while (total < limit && (len = in.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, len);
+                total += len;
+            }
+            return total;
+        } finally {
+            release(buffer);
+        }
+    }
+}
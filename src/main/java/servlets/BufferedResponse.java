@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An upstream response held in memory: the status, the headers in the order they arrived and the whole body.
+ * The proxy keeps responses in this form wherever it needs to look at, store or replay one rather than
+ * stream it through.
+ */
+final class BufferedResponse {
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final int status;
+    private final List<String> names = new ArrayList<String>();
+    private final List<String> values = new ArrayList<String>();
+    private byte[] body = NO_BODY;
+
+    BufferedResponse(int status) {
+        this.status = status;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    void addHeader(String name, String value) {
+        if (name != null && value != null) {
+            names.add(name);
+            values.add(value);
+        }
+    }
+
+    /**
+     * @return the first value of the header, or null if it isn't there.
+     */
+    String getHeader(String name) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                return values.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return every value of the header joined with commas, the way a list-valued header may be folded,
+     * or null if it isn't there.
+     */
+    String getHeaders(String name) {
+        StringBuilder joined = null;
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                if (joined == null) {
+                    joined = new StringBuilder(values.get(i));
+                } else {
+                    joined.append(", ").append(values.get(i));
+                }
+            }
+        }
+        return joined == null ? null : joined.toString();
+    }
+
+    int getHeaderCount() {
+        return names.size();
+    }
+
+    String getHeaderName(int index) {
+        return names.get(index);
+    }
+
+    String getHeaderValue(int index) {
+        return values.get(index);
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    void setBody(byte[] body) {
+        this.body = body == null ? NO_BODY : body;
+    }
+
+    /**
+     * @return roughly how much memory the response holds on to.
+     */
+    long size() {
+        long size = body.length;
+        for (int i = 0; i < names.size(); i++) {
+            size += names.get(i).length() + values.get(i).length();
+        }
+        return size;
+    }
+
+    /**
+     * @return a copy of the response with the body run through the transform, without a coding, or this
+     * response if its coding can't be undone.
+     */
+    BufferedResponse transform(HttpServletRequest request, ResponseTransform transform, Compression compression)
+            throws IOException {
+        String contentEncoding = getHeader("Content-Encoding");
+        if (compression != null ? !Compression.canDecode(contentEncoding) : contentEncoding != null) {
+            return this;
+        }
+        InputStream in = new ByteArrayInputStream(body);
+        if (contentEncoding != null) {
+            in = compression.decode(contentEncoding, in);
+        }
+        ByteArrayOutputStream transformed = new ByteArrayOutputStream();
+        transform.transform(request, in, transformed);
+
+        BufferedResponse response = new BufferedResponse(status);
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            if (name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Content-Length")) {
+                continue;
+            }
+            response.addHeader(name, name.equalsIgnoreCase("ETag") ? weak(values.get(i)) : values.get(i));
+        }
+        response.setBody(transformed.toByteArray());
+        return response;
+    }
+
+    /**
+     * @return the ETag of a body the proxy has rewritten, which is no longer byte for byte the remote host's.
+     */
+    static String weak(String etag) {
+        return etag == null || etag.startsWith("W/") ? etag : "W/" + etag;
+    }
+
+    /**
+     * Sets the status and the headers the policy passes on on the servlet response. The container frames the
+     * body itself, so the content length is set from the buffered body, except for an answer to a HEAD and a
+     * 304: they have no body, and keep the length the upstream gave for the entity.
+     */
+    void writeHeaders(HttpServletRequest request, HttpServletResponse response, HeaderPolicy policy) {
+        response.setStatus(status);
+        HeaderPolicy.ResponseHeaders headers = policy.copyResponseHeaders(request, getHeaders("Connection"), response);
+        for (int i = 0; i < names.size(); i++) {
+            headers.add(names.get(i), values.get(i));
+        }
+        headers.finish();
+        if ("HEAD".equals(request.getMethod()) || status == HttpServletResponse.SC_NOT_MODIFIED) {
+            String contentLength = getHeader("Content-Length");
+            if (contentLength != null) {
+                try {
+                    response.setContentLengthLong(Long.parseLong(contentLength.trim()));
+                } catch (NumberFormatException e) {
+                    // Left unset.
+                }
+            }
+        } else {
+            response.setContentLength(body.length);
+        }
+    }
+
+    /**
+     * Writes the whole response with blocking I/O.
+     */
+    void writeTo(HttpServletRequest request, HttpServletResponse response, HeaderPolicy policy) throws IOException {
+        writeHeaders(request, response, policy);
+        if (body.length > 0) {
+            response.getOutputStream().write(body);
+        }
+    }
+}
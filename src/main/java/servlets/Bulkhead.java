@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps how many upstream calls the {@link ProxyServlet} has in flight at once. A call over the cap is turned
+ * away rather than queued, so a slow remote host can't tie up every container thread and connection.
+ */
+final class Bulkhead {
+
+    static final String IN_FLIGHT = "bulkhead.in_flight";
+    static final String REJECTED  = "bulkhead.rejected";
+
+    private final Semaphore permits;
+    private final ProxyMetrics metrics;
+
+    Bulkhead(final int maxInFlight, ProxyMetrics metrics) {
+        this.permits = new Semaphore(maxInFlight);
+        this.metrics = metrics;
+        metrics.register(IN_FLIGHT, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return maxInFlight - permits.availablePermits();
+            }
+        });
+    }
+
+    /**
+     * @return false if the cap is reached. A call that is let through must {@link #release} once it's done.
+     */
+    boolean tryAcquire() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        metrics.increment(REJECTED);
+        return false;
+    }
+
+    void release() {
+        permits.release();
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import java.io.IOException;
+
+/**
+ * Stops the {@link ProxyServlet} from calling a remote host that is failing. Each {@link LoadBalancer.Host}
+ * has a breaker of its own, so a failing host doesn't turn away calls the others could answer. While the
+ * breaker is closed,
+ * the outcome of every upstream call is counted in a rolling window of {@code window} milliseconds. Once at
+ * least {@code minCalls} calls have been counted and too many of them failed, or took longer than the slow
+ * call threshold, the breaker opens and callers are turned away straight away for {@code openMillis}.
+ * After that a few probe calls are let through: if they all succeed the breaker closes again, and if any of
+ * them fails it opens for another round.
+ * <p>
+ * An upstream call fails when it can't be made or completed, or when it is answered with a 5xx status.
+ * The breaker's metrics are named after its host, e.g. {@code upstream.<host:port>.breaker.opened}.
+ */
+final class CircuitBreaker {
+
+    static final String STATE       = "breaker.state";
+    static final String OPENED      = "breaker.opened";
+    static final String HALF_OPENED = "breaker.half_opened";
+    static final String CLOSED      = "breaker.closed";
+    static final String REJECTED    = "breaker.rejected";
+    static final String FAILURES    = "breaker.failures";
+    static final String SLOW_CALLS  = "breaker.slow_calls";
+
+    private static final int BUCKETS = 10;
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final long bucketMillis;
+    private final int minCalls;
+    private final double failureRatio;
+    private final long slowCallNanos;
+    private final double slowCallRatio;
+    private final long openMillis;
+    private final int probes;
+    private final String prefix;
+    private final ProxyMetrics metrics;
+
+    // The rolling window, one bucket per tenth of it, guarded by this.
+    private final long[] bucketStarts = new long[BUCKETS];
+    private final int[] calls = new int[BUCKETS];
+    private final int[] failures = new int[BUCKETS];
+    private final int[] slowCalls = new int[BUCKETS];
+
+    private State state = State.CLOSED;
+    private long openUntil;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    /**
+     * @param name what the breaker's metrics are named after.
+     */
+    CircuitBreaker(String name, long windowMillis, int minCalls, double failureRatio, long slowCallMillis, double slowCallRatio,
+                   long openMillis, int probes, ProxyMetrics metrics) {
+        this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+        this.minCalls = Math.max(1, minCalls);
+        this.failureRatio = failureRatio;
+        this.slowCallNanos = slowCallMillis > 0 ? slowCallMillis * 1000000L : Long.MAX_VALUE;
+        this.slowCallRatio = slowCallRatio;
+        this.openMillis = openMillis;
+        this.probes = Math.max(1, probes);
+        this.prefix = name + ".";
+        this.metrics = metrics;
+        metrics.register(prefix + STATE, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return getState().ordinal();
+            }
+        });
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Asks whether {@link #tryAcquire} would let a call through now, without taking a probe. A call it
+     * wouldn't is counted as turned away.
+     */
+    synchronized boolean isAvailable() {
+        boolean available = state == State.OPEN ? System.currentTimeMillis() >= openUntil
+                : state == State.CLOSED || probesStarted < probes;
+        if (!available) {
+            metrics.increment(prefix + REJECTED);
+        }
+        return available;
+    }
+
+    /**
+     * Asks to make an upstream call. Every call that is let through must be followed by {@link #record} once
+     * its outcome is known, or by {@link #release} if it never went upstream after all.
+     *
+     * @return false if the breaker is open and the call must not be made.
+     */
+    synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() < openUntil) {
+                metrics.increment(prefix + REJECTED);
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probesStarted = 0;
+            probesSucceeded = 0;
+            metrics.increment(prefix + HALF_OPENED);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesStarted >= probes) {
+                metrics.increment(prefix + REJECTED);
+                return false;
+            }
+            probesStarted++;
+        }
+        return true;
+    }
+
+    /**
+     * Counts the outcome of a call that {@link #tryAcquire} let through.
+     *
+     * @param failed whether the call failed.
+     * @param nanos how long the upstream took to answer.
+     */
+    synchronized void record(boolean failed, long nanos) {
+        boolean slow = nanos >= slowCallNanos;
+        if (failed) {
+            metrics.increment(prefix + FAILURES);
+        }
+        if (slow) {
+            metrics.increment(prefix + SLOW_CALLS);
+        }
+
+        long now = System.currentTimeMillis();
+        if (state == State.HALF_OPEN) {
+            if (failed || slow) {
+                open(now);
+            } else if (++probesSucceeded >= probes) {
+                close();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // Let through before the breaker opened; it has already made up its mind.
+            return;
+        }
+
+        int bucket = bucket(now);
+        calls[bucket]++;
+        if (failed) {
+            failures[bucket]++;
+        }
+        if (slow) {
+            slowCalls[bucket]++;
+        }
+
+        int totalCalls = 0;
+        int totalFailures = 0;
+        int totalSlowCalls = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (now - bucketStarts[i] < bucketMillis * BUCKETS) {
+                totalCalls += calls[i];
+                totalFailures += failures[i];
+                totalSlowCalls += slowCalls[i];
+            }
+        }
+        if (totalCalls >= minCalls && (totalFailures >= failureRatio * totalCalls
+                || totalSlowCalls >= slowCallRatio * totalCalls)) {
+            open(now);
+        }
+    }
+
+    /**
+     * Hands back a call that {@link #tryAcquire} let through but that never went upstream.
+     */
+    synchronized void release() {
+        if (state == State.HALF_OPEN && probesStarted > probesSucceeded) {
+            probesStarted--;
+        }
+    }
+
+    /**
+     * @return how many seconds a turned away caller should wait before trying again.
+     */
+    synchronized long getRetryAfterSeconds() {
+        long millis = state == State.OPEN ? openUntil - System.currentTimeMillis() : 0;
+        return Math.max(1, (millis + 999) / 1000);
+    }
+
+    private int bucket(long now) {
+        int bucket = (int) ((now / bucketMillis) % BUCKETS);
+        long start = now - now % bucketMillis;
+        if (bucketStarts[bucket] != start) {
+            bucketStarts[bucket] = start;
+            calls[bucket] = 0;
+            failures[bucket] = 0;
+            slowCalls[bucket] = 0;
+        }
+        return bucket;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openUntil = now + openMillis;
+        metrics.increment(prefix + OPENED);
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketStarts[i] = 0;
+            calls[i] = 0;
+            failures[i] = 0;
+            slowCalls[i] = 0;
+        }
+        metrics.increment(prefix + CLOSED);
+    }
+
+    /**
+     * Thrown when a call can't be made because the breakers of the hosts it could go to are all open.
+     */
+    static final class OpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterSeconds;
+
+        OpenException(long retryAfterSeconds) {
+            super("remote_host is unavailable");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Batches sObject and query GETs made with the same OAuth token into one call to the Composite Batch
+ * resource. A canvas page that fires off a dozen small REST calls at once then pays for one upstream
+ * round trip and one API call instead of a dozen.
+ * <p>
+ * The first call to arrive leads a batch and holds it open for {@code window} milliseconds, or until it is
+ * full; calls made with the same token and API version meanwhile join it. The leader then sends the batch
+ * and hands each call its own sub-response, which is answered like any other response held in memory. A
+ * batch that only the leader joined is not worth sending, and a batch that fails is not worth retrying, so
+ * in both cases every call goes upstream on its own.
+ * <p>
+ * Only GETs are batched, and only those without validators or ranges, since a sub-response carries no
+ * headers but its status. Sub-responses are always JSON.
+ */
+final class CompositeBatch {
+
+    static final String BATCHES   = "batch.batches";
+    static final String BATCHED   = "batch.batched";
+    static final String UNBATCHED = "batch.unbatched";
+    static final String OPEN      = "batch.open";
+    static final String TIMEOUTS  = "batch.timeouts";
+
+    // The most subrequests the Composite Batch resource takes at once.
+    static final int MAX_CALLS = 25;
+
+    private static final Pattern BATCHABLE = Pattern.compile("/services/data/(v\\d+\\.\\d+)/(sobjects|query|queryAll)(/.*)?");
+    private static final String CONTENT_TYPE = "application/json;charset=UTF-8";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final long windowMillis;
+    private final int maxCalls;
+    private final ProxyMetrics metrics;
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "proxy-batch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param maxCalls the most calls in one batch, at most {@link #MAX_CALLS}.
+     */
+    CompositeBatch(long windowMillis, int maxCalls, ProxyMetrics metrics) {
+        this.windowMillis = windowMillis;
+        this.maxCalls = Math.max(1, Math.min(maxCalls, MAX_CALLS));
+        this.metrics = metrics;
+        metrics.register(OPEN, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return batches.size();
+            }
+        });
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @param query the query string to send upstream, or null.
+     * @return the request's URL relative to {@code /services/data/}, the way a subrequest names it, or null if
+     * the request can't be batched.
+     */
+    static String url(String verb, HttpServletRequest request, String query) {
+        if (!"GET".equals(verb) || request.getHeader("Authorization") == null) {
+            return null;
+        }
+        if (request.getHeader("If-None-Match") != null || request.getHeader("If-Modified-Since") != null
+                || request.getHeader("Range") != null) {
+            return null;
+        }
+        String accept = request.getHeader("Accept");
+        if (accept != null && !accept.contains("json") && !accept.contains("*/*")) {
+            return null;
+        }
+        String uri = request.getRequestURI();
+        if (!BATCHABLE.matcher(uri).matches()) {
+            return null;
+        }
+        String url = uri.substring("/services/data/".length());
+        return query == null ? url : url + "?" + query;
+    }
+
+    /**
+     * Adds the call to the open batch for its token and API version, opening one if there is none.
+     *
+     * @param url the call's URL as returned by {@link #url}.
+     */
+    Call join(HttpServletRequest request, String url) {
+        String version = url.substring(0, url.indexOf('/'));
+        String key = version + ' ' + ResponseCache.scope(request);
+        while (true) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                final Batch opened = new Batch(this, key, version);
+                if (batches.putIfAbsent(key, opened) != null) {
+                    continue;
+                }
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        opened.ready.complete(null);
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+                batch = opened;
+            }
+            Call call = batch.add(url);
+            if (call != null) {
+                return call;
+            }
+            // Closed or full before this call got in.
+            batches.remove(key, batch);
+        }
+    }
+
+    /**
+     * Calls collected under one token and API version.
+     */
+    static final class Batch {
+
+        private final CompositeBatch owner;
+        private final String key;
+        private final String version;
+        private final List<Call> calls = new ArrayList<Call>();
+        private final CompletableFuture<Void> ready = new CompletableFuture<Void>();
+        private boolean closed;
+
+        private Batch(CompositeBatch owner, String key, String version) {
+            this.owner = owner;
+            this.key = key;
+            this.version = version;
+        }
+
+        private synchronized Call add(String url) {
+            if (closed || calls.size() >= owner.maxCalls) {
+                return null;
+            }
+            Call call = new Call(this, url, calls.isEmpty());
+            calls.add(call);
+            if (calls.size() == owner.maxCalls) {
+                ready.complete(null);
+            }
+            return call;
+        }
+
+        /**
+         * Blocks until the window is over or the batch is full.
+         */
+        void await() {
+            try {
+                ready.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // Never completed exceptionally.
+            }
+        }
+
+        /**
+         * Runs the task once the window is over or the batch is full, on the thread that closes it.
+         */
+        void whenReady(Runnable task) {
+            ready.thenRun(task);
+        }
+
+        /**
+         * Takes the batch out of the open ones, so calls made from now on start another.
+         *
+         * @return the Composite Batch request body, or null if the batch isn't worth sending, in which case its
+         * only call has been told to go upstream on its own.
+         */
+        byte[] close() {
+            owner.batches.remove(key, this);
+            synchronized (this) {
+                closed = true;
+            }
+            if (calls.size() < 2) {
+                complete(null);
+                return null;
+            }
+            ObjectNode body = MAPPER.createObjectNode();
+            ArrayNode requests = body.putArray("batchRequests");
+            for (Call call : calls) {
+                requests.addObject().put("method", "GET").put("url", call.url);
+            }
+            try {
+                return MAPPER.writeValueAsBytes(body);
+            } catch (IOException e) {
+                complete(null);
+                return null;
+            }
+        }
+
+        /**
+         * @return the path of the Composite Batch resource the batch is sent to.
+         */
+        String getPath() {
+            return "/services/data/" + version + "/composite/batch";
+        }
+
+        /**
+         * Hands each call its sub-response.
+         *
+         * @param status the status of the Composite Batch call.
+         * @param body its decoded body, or null if it failed; the calls then go upstream on their own.
+         */
+        void complete(int status, byte[] body) {
+            List<BufferedResponse> responses = null;
+            if (status == 200 && body != null) {
+                try {
+                    responses = split(MAPPER.readTree(body));
+                } catch (IOException e) {
+                    // Not what the resource answers, so the calls are better off going on their own.
+                }
+            }
+            complete(responses);
+        }
+
+        private List<BufferedResponse> split(JsonNode answer) throws IOException {
+            JsonNode results = answer == null ? null : answer.get("results");
+            if (results == null || !results.isArray() || results.size() != calls.size()) {
+                return null;
+            }
+            List<BufferedResponse> responses = new ArrayList<BufferedResponse>(calls.size());
+            for (JsonNode result : results) {
+                BufferedResponse response = new BufferedResponse(result.path("statusCode").asInt(502));
+                JsonNode content = result.get("result");
+                if (content != null && !content.isNull()) {
+                    response.addHeader("Content-Type", CONTENT_TYPE);
+                    response.setBody(MAPPER.writeValueAsBytes(content));
+                }
+                responses.add(response);
+            }
+            return responses;
+        }
+
+        private void complete(List<BufferedResponse> responses) {
+            if (responses != null) {
+                owner.metrics.increment(BATCHES);
+                owner.metrics.add(BATCHED, calls.size());
+            } else {
+                owner.metrics.add(UNBATCHED, calls.size());
+            }
+            for (int i = 0; i < calls.size(); i++) {
+                calls.get(i).response.complete(responses != null ? responses.get(i) : null);
+            }
+        }
+    }
+
+    /**
+     * One call waiting in a batch.
+     */
+    static final class Call {
+
+        private final Batch batch;
+        private final String url;
+        private final boolean leader;
+        private final CompletableFuture<BufferedResponse> response = new CompletableFuture<BufferedResponse>();
+
+        private Call(Batch batch, String url, boolean leader) {
+            this.batch = batch;
+            this.url = url;
+            this.leader = leader;
+        }
+
+        /**
+         * @return whether this call sends the batch.
+         */
+        boolean isLeader() {
+            return leader;
+        }
+
+        Batch getBatch() {
+            return batch;
+        }
+
+        /**
+         * @return the future the call waits on; it completes with its sub-response, or with null when it must
+         * go upstream on its own.
+         */
+        CompletableFuture<BufferedResponse> getResponse() {
+            return response;
+        }
+    }
+}
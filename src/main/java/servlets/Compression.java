@@ -0,0 +1,363 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content-coding negotiation for the {@link ProxyServlet}. The proxy always asks the upstream for a gzip or
+ * deflate response, and then for each client either
+ * <ul>
+ *     <li>passes an encoded body through untouched when the client accepts its coding,</li>
+ *     <li>decodes it on the way through when the client doesn't, or</li>
+ *     <li>gzips (or deflates) an uncompressed text or JSON body of at least the minimum size when the client
+ *     accepts it.</li>
+ * </ul>
+ * Small bodies are left alone, since compressing them saves little and costs a deflater each.
+ */
+final class Compression {
+
+    static final String PASSED_THROUGH = "compression.passed_through";
+    static final String DECODED        = "compression.decoded";
+    static final String ENCODED        = "compression.encoded";
+    static final String BYTES_IN       = "compression.encoded_bytes_in";
+    static final String BYTES_OUT      = "compression.encoded_bytes_out";
+    static final String RATIO          = "compression.ratio";
+
+    /**
+     * What the proxy asks the upstream for.
+     */
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /**
+     * What to do with one response body.
+     */
+    enum Plan {
+        /** Send the body as it came. */
+        PASS,
+        /** Decode the upstream's coding. */
+        DECODE,
+        /** Compress with gzip. */
+        GZIP,
+        /** Compress with deflate. */
+        DEFLATE
+    }
+
+    private final int minSize;
+    private final ProxyMetrics metrics;
+
+    Compression(int minSize, final ProxyMetrics metrics) {
+        this.minSize = minSize;
+        this.metrics = metrics;
+        metrics.register(RATIO, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return metrics.ratio(BYTES_OUT, BYTES_IN);
+            }
+        });
+    }
+
+    /**
+     * @param contentEncoding the upstream's Content-Encoding, or null.
+     * @param contentType the upstream's Content-Type, or null.
+     * @param contentLength the body length, or -1 if it isn't known up front.
+     */
+    Plan negotiate(HttpServletRequest request, int status, String contentEncoding, String contentType,
+                   long contentLength) {
+        if (status < 200 || status == 204 || status == 206 || status == 304 || "HEAD".equals(request.getMethod())) {
+            return Plan.PASS;
+        }
+        if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) {
+            if (accepts(request, contentEncoding)
+                    || !(isGzip(contentEncoding) || contentEncoding.equalsIgnoreCase("deflate"))) {
+                metrics.increment(PASSED_THROUGH);
+                return Plan.PASS;
+            }
+            metrics.increment(DECODED);
+            return Plan.DECODE;
+        }
+        if (!isCompressible(contentType) || (contentLength >= 0 && contentLength < minSize)) {
+            return Plan.PASS;
+        }
+        if (accepts(request, "gzip")) {
+            return Plan.GZIP;
+        }
+        if (accepts(request, "deflate")) {
+            return Plan.DEFLATE;
+        }
+        return Plan.PASS;
+    }
+
+    /**
+     * @return how to send a body the proxy has rewritten: compressed if the client accepts gzip or deflate,
+     * otherwise {@link Plan#DECODE}, with no coding at all.
+     */
+    Plan negotiateRewritten(HttpServletRequest request) {
+        if (accepts(request, "gzip")) {
+            return Plan.GZIP;
+        }
+        if (accepts(request, "deflate")) {
+            return Plan.DEFLATE;
+        }
+        return Plan.DECODE;
+    }
+
+    /**
+     * @return the Content-Encoding to send for the plan, or null for none.
+     */
+    static String contentEncoding(Plan plan, String upstreamEncoding) {
+        switch (plan) {
+            case GZIP:
+                return "gzip";
+            case DEFLATE:
+                return "deflate";
+            case DECODE:
+                return null;
+            default:
+                return upstreamEncoding;
+        }
+    }
+
+    /**
+     * The proxy's own compression changes the representation, so its strong validator becomes a weak one.
+     */
+    static String etag(Plan plan, String etag) {
+        if (etag == null || etag.startsWith("W/") || (plan != Plan.GZIP && plan != Plan.DEFLATE)) {
+            return etag;
+        }
+        return "W/" + etag;
+    }
+
+    InputStream decode(String contentEncoding, InputStream in) throws IOException {
+        if (contentEncoding.equalsIgnoreCase("identity")) {
+            return in;
+        }
+        return isGzip(contentEncoding) ? new GZIPInputStream(in) : new InflaterInputStream(in);
+    }
+
+    /**
+     * @return whether {@link #decode} can undo the coding, or there is none.
+     */
+    static boolean canDecode(String contentEncoding) {
+        return contentEncoding == null || contentEncoding.equalsIgnoreCase("identity") || isGzip(contentEncoding)
+                || contentEncoding.equalsIgnoreCase("deflate");
+    }
+
+    /**
+     * Wraps the client's stream in the plan's compressor. Closing the returned stream finishes the compressed
+     * body but leaves the client's stream open.
+     */
+    OutputStream encode(Plan plan, OutputStream out, int bufferSize) throws IOException {
+        metrics.increment(ENCODED);
+        final CountingOutputStream counted = new CountingOutputStream(out);
+        // The deflater's native memory is only freed by end(), which must run even if the client has gone.
+        return plan == Plan.GZIP ? new GZIPOutputStream(counted, bufferSize) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    finish();
+                    metrics.add(BYTES_IN, def.getBytesRead());
+                    flush();
+                    counted.report();
+                } finally {
+                    def.end();
+                }
+            }
+        } : new DeflaterOutputStream(counted, new Deflater(), bufferSize) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    finish();
+                    metrics.add(BYTES_IN, def.getBytesRead());
+                    flush();
+                    counted.report();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Applies the negotiation to a response held in memory.
+     */
+    BufferedResponse apply(HttpServletRequest request, BufferedResponse response, int bufferSize) throws IOException {
+        String contentEncoding = response.getHeader("Content-Encoding");
+        Plan plan = negotiate(request, response.getStatus(), contentEncoding, response.getHeader("Content-Type"),
+                response.getBody().length);
+        if (plan == Plan.PASS) {
+            return withVary(response, contentEncoding != null || isCompressible(response.getHeader("Content-Type")));
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (plan == Plan.DECODE) {
+            InputStream in = decode(contentEncoding, new ByteArrayInputStream(response.getBody()));
+            byte[] buffer = new byte[bufferSize];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                body.write(buffer, 0, len);
+            }
+        } else {
+            OutputStream out = encode(plan, body, bufferSize);
+            out.write(response.getBody());
+            out.close();
+        }
+
+        BufferedResponse transformed = new BufferedResponse(response.getStatus());
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+            String name = response.getHeaderName(i);
+            if (name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Vary")) {
+                continue;
+            }
+            String value = response.getHeaderValue(i);
+            transformed.addHeader(name, name.equalsIgnoreCase("ETag") ? etag(plan, value) : value);
+        }
+        transformed.addHeader("Content-Encoding", contentEncoding(plan, contentEncoding));
+        transformed.addHeader("Vary", vary(response.getHeaders("Vary")));
+        transformed.setBody(body.toByteArray());
+        return transformed;
+    }
+
+    /**
+     * @return the Vary header to send for a response whose coding depends on the client's Accept-Encoding.
+     */
+    static String vary(String upstreamVary) {
+        if (upstreamVary == null || upstreamVary.trim().length() == 0) {
+            return "Accept-Encoding";
+        }
+        return upstreamVary.toLowerCase(Locale.ENGLISH).contains("accept-encoding")
+                ? upstreamVary : upstreamVary + ", Accept-Encoding";
+    }
+
+    private static BufferedResponse withVary(BufferedResponse response, boolean varies) {
+        if (!varies) {
+            return response;
+        }
+        String vary = response.getHeaders("Vary");
+        String merged = vary(vary);
+        if (merged.equals(vary)) {
+            return response;
+        }
+        BufferedResponse withVary = new BufferedResponse(response.getStatus());
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+            if (!response.getHeaderName(i).equalsIgnoreCase("Vary")) {
+                withVary.addHeader(response.getHeaderName(i), response.getHeaderValue(i));
+            }
+        }
+        withVary.addHeader("Vary", merged);
+        withVary.setBody(response.getBody());
+        return withVary;
+    }
+
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ENGLISH);
+        return type.startsWith("text/") || type.startsWith("application/json") || type.startsWith("application/xml")
+                || type.startsWith("application/javascript") || type.contains("+json") || type.contains("+xml");
+    }
+
+    static boolean isGzip(String coding) {
+        return coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip");
+    }
+
+    /**
+     * @return true if the request's Accept-Encoding names the coding, or *, without q=0.
+     */
+    static boolean accepts(HttpServletRequest request, String coding) {
+        Enumeration<String> headers = request.getHeaders("Accept-Encoding");
+        if (headers == null) {
+            return false;
+        }
+        boolean gzip = isGzip(coding);
+        while (headers.hasMoreElements()) {
+            for (String item : headers.nextElement().split(",")) {
+                String[] parts = item.split(";");
+                String name = parts[0].trim();
+                if (!(name.equalsIgnoreCase(coding) || name.equals("*") || (gzip && isGzip(name)))) {
+                    continue;
+                }
+                boolean refused = false;
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                        try {
+                            refused = Double.parseDouble(parameter.substring(2)) <= 0;
+                        } catch (NumberFormatException e) {
+                            refused = true;
+                        }
+                    }
+                }
+                return !refused;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the compressed bytes on their way to the client.
+     */
+    private final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        void report() {
+            metrics.add(BYTES_OUT, count);
+            count = 0;
+        }
+    }
+}
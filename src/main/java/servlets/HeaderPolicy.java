@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which headers the {@link ProxyServlet} passes on, and how. The rules are compiled once, at init,
+ * into a table keyed by the lower-cased header name, so each header costs one lookup however many rules
+ * there are.
+ * <p>
+ * Hop-by-hop headers, and any header the {@code Connection} header names, concern one connection only and
+ * are never passed on; the HTTP client and the container frame each side of the proxy themselves, which
+ * keeps upstream connections alive and lets known lengths through unchunked. The request's {@code Host} is
+ * left for the client to set to the remote host's, and {@code Location} headers that point at a remote
+ * host are pointed back at the proxy. When turned on, the proxy adds itself to {@code Via} both ways and
+ * tells the remote host who the client is with {@code X-Forwarded-For}, {@code X-Forwarded-Proto} and
+ * {@code X-Forwarded-Host}. The client's address is appended to any {@code X-Forwarded-For} it sent, but
+ * the other two are the proxy's own: whatever the client sent in them is replaced, since nothing vouches
+ * for it.
+ */
+final class HeaderPolicy {
+
+    private enum Rule { DROP, VIA, FORWARDED_FOR, LOCATION }
+
+    // Headers for one connection only, RFC 7230 section 6.1.
+    private static final List<String> HOP_BY_HOP = Arrays.asList("Connection", "Keep-Alive", "Proxy-Authenticate",
+            "Proxy-Authorization", "Proxy-Connection", "TE", "Trailer", "Transfer-Encoding", "Upgrade");
+    // Request headers the HTTP client sets itself, the same ones HttpURLConnection restricts.
+    private static final List<String> RESTRICTED_REQUEST = Arrays.asList("Access-Control-Request-Headers",
+            "Access-Control-Request-Method", "Content-Length", "Content-Transfer-Encoding", "Host", "Origin");
+    // Response headers that frame the upstream body; the container frames the copy it sends on its own.
+    private static final List<String> FRAMING_RESPONSE = Collections.singletonList("Content-Length");
+
+    private final Map<String, Rule> requestRules = new HashMap<String, Rule>();
+    private final Map<String, Rule> responseRules = new HashMap<String, Rule>();
+    private final String via;
+    private final String[] remoteHosts;
+
+    /**
+     * @param remoteHosts the URLs of the remote hosts, whose {@code Location}s are rewritten.
+     * @param via the name the proxy adds to {@code Via} under, or null to add neither it nor the
+     * {@code X-Forwarded} headers.
+     * @param dropRequest more request headers to leave out.
+     * @param dropResponse more response headers to leave out.
+     */
+    HeaderPolicy(List<String> remoteHosts, String via, boolean rewriteLocation, Iterable<String> dropRequest,
+                 Iterable<String> dropResponse) {
+        this.via = via == null ? null : "1.1 " + via;
+        this.remoteHosts = new String[remoteHosts.size()];
+        for (int i = 0; i < this.remoteHosts.length; i++) {
+            this.remoteHosts[i] = origin(remoteHosts.get(i));
+        }
+
+        put(requestRules, HOP_BY_HOP, Rule.DROP);
+        put(requestRules, RESTRICTED_REQUEST, Rule.DROP);
+        put(requestRules, dropRequest, Rule.DROP);
+        if (via != null) {
+            put(requestRules, Collections.singletonList("Via"), Rule.VIA);
+            put(requestRules, Collections.singletonList("X-Forwarded-For"), Rule.FORWARDED_FOR);
+            put(requestRules, Arrays.asList("X-Forwarded-Proto", "X-Forwarded-Host"), Rule.DROP);
+        } else {
+            put(requestRules, Collections.singletonList("Via"), Rule.DROP);
+        }
+
+        put(responseRules, HOP_BY_HOP, Rule.DROP);
+        put(responseRules, FRAMING_RESPONSE, Rule.DROP);
+        put(responseRules, dropResponse, Rule.DROP);
+        if (via != null) {
+            put(responseRules, Collections.singletonList("Via"), Rule.VIA);
+        }
+        if (rewriteLocation) {
+            put(responseRules, Arrays.asList("Location", "Content-Location"), Rule.LOCATION);
+        }
+    }
+
+    private static void put(Map<String, Rule> rules, Iterable<String> names, Rule rule) {
+        for (String name : names) {
+            name = name.trim();
+            if (name.length() > 0) {
+                rules.put(name.toLowerCase(Locale.ROOT), rule);
+            }
+        }
+    }
+
+    /**
+     * Where headers are copied to; the two HTTP clients and the servlet response each take them differently.
+     */
+    interface Sink {
+        void add(String name, String value);
+    }
+
+    /**
+     * Copies the request headers to pass on to the sink in a single pass, and adds the proxy's own.
+     */
+    void copyRequestHeaders(HttpServletRequest request, Sink upstream) {
+        Set<String> connection = connectionTokens(request.getHeader("Connection"));
+        String forwardedFor = null;
+        String priorVia = null;
+
+        Enumeration<String> names = request.getHeaderNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            String key = name.toLowerCase(Locale.ROOT);
+            Rule rule = requestRules.get(key);
+            if (rule == Rule.DROP || (connection != null && connection.contains(key))) {
+                continue;
+            }
+            Enumeration<String> values = request.getHeaders(name);
+            while (values.hasMoreElements()) {
+                String value = values.nextElement();
+                if (value == null) {
+                    continue;
+                }
+                if (rule == Rule.VIA) {
+                    priorVia = priorVia == null ? value : priorVia + ", " + value;
+                } else if (rule == Rule.FORWARDED_FOR) {
+                    forwardedFor = forwardedFor == null ? value : forwardedFor + ", " + value;
+                } else {
+                    upstream.add(name, value);
+                }
+            }
+        }
+
+        if (via != null) {
+            upstream.add("Via", priorVia == null ? via : priorVia + ", " + via);
+            String client = request.getRemoteAddr();
+            upstream.add("X-Forwarded-For", forwardedFor == null ? client : forwardedFor + ", " + client);
+            upstream.add("X-Forwarded-Proto", request.getScheme());
+            String host = request.getHeader("Host");
+            if (host != null) {
+                upstream.add("X-Forwarded-Host", host);
+            }
+        }
+    }
+
+    /**
+     * Starts copying the headers of one upstream response to the client.
+     *
+     * @param request the client's request, or null to leave {@code Location} headers as they are.
+     * @param connection the upstream response's {@code Connection} header, or null.
+     */
+    ResponseHeaders copyResponseHeaders(HttpServletRequest request, String connection, HttpServletResponse response) {
+        return new ResponseHeaders(request, connectionTokens(connection), response);
+    }
+
+    /**
+     * The response headers being copied. Call {@link #finish} once all of them have been added.
+     */
+    final class ResponseHeaders implements Sink {
+
+        private final HttpServletRequest request;
+        private final Set<String> connection;
+        private final HttpServletResponse response;
+        private String priorVia;
+
+        private ResponseHeaders(HttpServletRequest request, Set<String> connection, HttpServletResponse response) {
+            this.request = request;
+            this.connection = connection;
+            this.response = response;
+        }
+
+        @Override
+        public void add(String name, String value) {
+            if (name == null || value == null) {
+                return;
+            }
+            String key = name.toLowerCase(Locale.ROOT);
+            Rule rule = responseRules.get(key);
+            if (rule == Rule.DROP || (connection != null && connection.contains(key))) {
+                return;
+            }
+            if (rule == Rule.VIA) {
+                priorVia = priorVia == null ? value : priorVia + ", " + value;
+                return;
+            }
+            if (rule == Rule.LOCATION && request != null) {
+                value = rewriteLocation(value, request);
+            }
+            response.addHeader(name, value);
+        }
+
+        void finish() {
+            if (via != null) {
+                response.setHeader("Via", priorVia == null ? via : priorVia + ", " + via);
+            }
+        }
+    }
+
+    /**
+     * @return the location with a remote host's origin replaced by the one the client reached the proxy at.
+     */
+    private String rewriteLocation(String location, HttpServletRequest request) {
+        String host = request.getHeader("Host");
+        if (host == null) {
+            return location;
+        }
+        for (String remoteHost : remoteHosts) {
+            if (location.regionMatches(true, 0, remoteHost, 0, remoteHost.length())
+                    && (location.length() == remoteHost.length() || location.charAt(remoteHost.length()) == '/')) {
+                return request.getScheme() + "://" + host + location.substring(remoteHost.length());
+            }
+        }
+        return location;
+    }
+
+    /**
+     * @return the scheme and authority of the URL, without a trailing slash.
+     */
+    private static String origin(String url) {
+        url = url.trim();
+        int path = url.indexOf('/', url.indexOf("://") + 3);
+        return path < 0 ? url : url.substring(0, path);
+    }
+
+    /**
+     * @return the lower-cased names of the headers the Connection header lists, or null if it lists none
+     * but the usual options.
+     */
+    private static Set<String> connectionTokens(String connection) {
+        if (connection == null) {
+            return null;
+        }
+        Set<String> tokens = null;
+        for (String token : connection.split(",")) {
+            token = token.trim().toLowerCase(Locale.ROOT);
+            if (token.length() > 0 && !token.equals("keep-alive") && !token.equals("close")) {
+                if (tokens == null) {
+                    tokens = new HashSet<String>();
+                }
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hedged requests for the {@link ProxyServlet}. When a GET, HEAD or OPTIONS call hasn't been answered
+ * within the {@code percentile}th percentile of recent upstream response times, a second copy is sent,
+ * to another host if there is one, and whichever answer arrives first is used while the other call is
+ * cancelled. A rare slow response then costs one extra call instead of the whole wait.
+ * <p>
+ * The extra calls are capped by a budget: every hedgeable request earns {@code budget} of a hedge, so a
+ * budget of 0.1 adds at most one upstream call for every ten requests, and a burst of slow responses
+ * can't double the load on an upstream that is already struggling. No request is hedged until enough
+ * response times have been seen to tell what slow is.
+ * <p>
+ * The percentiles of the time it took to answer hedgeable requests are kept as metrics, so the tail can
+ * be compared with hedging on and off.
+ */
+final class Hedging {
+
+    static final String FIRED       = "hedge.fired";
+    static final String WON         = "hedge.won";
+    static final String OVER_BUDGET = "hedge.over_budget";
+    static final String DELAY       = "hedge.delay_millis";
+
+    static final Set<String> VERBS = new TreeSet<String>(Arrays.asList("GET", "HEAD", "OPTIONS"));
+
+    // Response times kept for the percentiles, and how many must be seen before hedging starts.
+    private static final int WINDOW = 1024;
+    private static final int MIN_SAMPLES = 20;
+    // How many hedges can be saved up.
+    private static final long MAX_CREDIT = 10 * 1000;
+
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long creditPerRequest;
+    private final ProxyMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final LatencyWindow attempts = new LatencyWindow();
+    private final LatencyWindow responses = new LatencyWindow();
+    private final AtomicLong credit = new AtomicLong();
+
+    /**
+     * @param budget the share of requests that may be hedged, 0.1 for one in ten.
+     * @param threads how many hedged calls can be made at once; the blocking proxy makes them on these threads.
+     */
+    Hedging(double percentile, long minDelayMillis, double budget, int threads, ProxyMetrics metrics) {
+        this.percentile = percentile;
+        this.minDelayNanos = minDelayMillis * 1000000L;
+        this.creditPerRequest = (long) (budget * 1000);
+        this.metrics = metrics;
+        this.scheduler = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "proxy-hedge-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        metrics.register(DELAY, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                long delay = getDelayNanos();
+                return delay == Long.MAX_VALUE ? 0 : delay / 1e6;
+            }
+        });
+        for (final double p : new double[] {50, 90, 99, 99.9}) {
+            metrics.register("hedge.response_p" + (p == Math.floor(p) ? String.valueOf((int) p) : String.valueOf(p))
+                    + "_millis", new ProxyMetrics.Gauge() {
+                @Override
+                public double value() {
+                    long nanos = responses.percentile(p);
+                    return nanos == Long.MAX_VALUE ? 0 : nanos / 1e6;
+                }
+            });
+        }
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return how long to wait for the first call before hedging, or Long.MAX_VALUE if too few calls have
+     * been seen yet.
+     */
+    long getDelayNanos() {
+        long delay = attempts.percentile(percentile);
+        return delay == Long.MAX_VALUE ? delay : Math.max(minDelayNanos, delay);
+    }
+
+    /**
+     * Counts a hedgeable request towards the budget.
+     */
+    void requested() {
+        while (true) {
+            long current = credit.get();
+            long next = Math.min(MAX_CREDIT, current + creditPerRequest);
+            if (current == next || credit.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes one hedge from the budget.
+     *
+     * @return false if the budget is spent.
+     */
+    boolean tryHedge() {
+        while (true) {
+            long current = credit.get();
+            if (current < 1000) {
+                metrics.increment(OVER_BUDGET);
+                return false;
+            }
+            if (credit.compareAndSet(current, current - 1000)) {
+                metrics.increment(FIRED);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records how long one upstream call took to answer.
+     */
+    void attempted(long nanos) {
+        attempts.add(nanos);
+    }
+
+    /**
+     * Records how long a hedgeable request took to be answered, by whichever call won.
+     *
+     * @param hedge whether the hedged call won.
+     */
+    void answered(long nanos, boolean hedge) {
+        responses.add(nanos);
+        if (hedge) {
+            metrics.increment(WON);
+        }
+    }
+
+    /**
+     * The most recent response times. The percentile is worked out again every few samples rather than on
+     * every read.
+     */
+    private static final class LatencyWindow {
+
+        private final AtomicLongArray samples = new AtomicLongArray(WINDOW);
+        private final AtomicLong count = new AtomicLong();
+        private volatile long[] sorted = new long[0];
+        private volatile long sortedAt;
+
+        void add(long nanos) {
+            long n = count.getAndIncrement();
+            samples.set((int) (n % WINDOW), Math.max(1, nanos));
+        }
+
+        long percentile(double p) {
+            long n = count.get();
+            if (n < MIN_SAMPLES) {
+                return Long.MAX_VALUE;
+            }
+            long[] values = sorted;
+            if (n - sortedAt >= MIN_SAMPLES || values.length == 0) {
+                int size = (int) Math.min(n, WINDOW);
+                values = new long[size];
+                for (int i = 0; i < size; i++) {
+                    values[i] = samples.get(i);
+                }
+                Arrays.sort(values);
+                sorted = values;
+                sortedAt = n;
+            }
+            int index = (int) Math.ceil(p / 100 * values.length) - 1;
+            return values[Math.max(0, Math.min(values.length - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package servlets;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The proxy's pool of keep-alive connections to the upstream hosts. Counts every lease, the leases that
+ * had to wait for a connection to be released and the leases that reused an open connection. TLS
+ * connections are made with the JVM's trust store and check that the certificate matches the host name.
+ */
+class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+    static final String LEASES        = "pool.leases";
+    static final String WAITS         = "pool.waits";
+    static final String WAIT_MILLIS   = "pool.wait_millis";
+    static final String REUSED        = "pool.reused";
+    static final String TIMEOUTS      = "pool.timeouts";
+
+    private static final long WAIT_THRESHOLD_NANOS = 1000000;
+
+    private final ProxyMetrics metrics;
+
+    InstrumentedConnectionManager(final ProxyMetrics metrics) {
+        this.metrics = metrics;
+        metrics.register("pool.reuse_ratio", new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return metrics.ratio(REUSED, LEASES);
+            }
+        });
+        metrics.register("pool.connections", new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                PoolStats stats = getTotalStats();
+                return stats.getLeased() + stats.getAvailable();
+            }
+        });
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final ConnectionRequest request = super.requestConnection(route, state);
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+
+                long start = System.nanoTime();
+                HttpClientConnection connection;
+                try {
+                    connection = request.get(timeout, unit);
+                } catch (ConnectionPoolTimeoutException e) {
+                    metrics.increment(TIMEOUTS);
+                    throw e;
+                }
+                long waited = System.nanoTime() - start;
+
+                metrics.increment(LEASES);
+                // The pool doesn't say whether a lease blocked, but one that didn't takes microseconds.
+                if (waited >= WAIT_THRESHOLD_NANOS) {
+                    metrics.increment(WAITS);
+                    metrics.add(WAIT_MILLIS, waited / 1000000);
+                }
+                // New connections are handed out unconnected and only opened once the request is sent.
+                if (connection.isOpen()) {
+                    metrics.increment(REUSED);
+                }
+                return connection;
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Projects JSON responses down to the fields a client asks for, so a canvas app that shows two columns of a
+ * large query result doesn't pay to download and parse all of them. The client names the fields in a query
+ * parameter, for example {@code _fields=Id,Name,Owner.Name}, which is never sent upstream.
+ * <p>
+ * The body is rewritten token by token with Jackson's streaming parser and generator, so it is never held
+ * in memory whole. The fields are picked out of every record: the top-level object of an sObject response,
+ * the elements of the {@code records} array of a query result, or the elements of a top-level array. A
+ * dotted name picks fields out of a related record or, for a child relationship, out of its records. Field
+ * names match case-insensitively, the way SOQL's do. The {@code attributes} of a record and the
+ * {@code totalSize}, {@code done}, {@code nextRecordsUrl} and {@code records} of a query result are always
+ * kept, so the result still reads like a Salesforce response. With compression off the proxy can't undo a
+ * coding, so a compressed body passes through whole.
+ */
+final class JsonProjection implements ResponseTransform {
+
+    static final String RESPONSES = "projection.responses";
+    static final String BYTES_IN  = "projection.bytes_in";
+    static final String BYTES_OUT = "projection.bytes_out";
+    static final String RATIO     = "projection.ratio";
+
+    private static final JsonFactory FACTORY = new JsonFactory()
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final Set<String> ALWAYS_KEPT = new HashSet<String>(Arrays.asList("attributes", "totalSize",
+            "done", "nextRecordsUrl"));
+    private static final String RECORDS = "records";
+
+    private final String parameter;
+    private final ProxyMetrics metrics;
+
+    /**
+     * @param parameter the query parameter the client names the fields in.
+     */
+    JsonProjection(String parameter, final ProxyMetrics metrics) {
+        this.parameter = parameter;
+        this.metrics = metrics;
+        metrics.register(RATIO, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return metrics.ratio(BYTES_OUT, BYTES_IN);
+            }
+        });
+    }
+
+    @Override
+    public String upstreamQuery(String query) {
+        if (query == null || !query.contains(parameter)) {
+            return query;
+        }
+        StringBuilder upstream = new StringBuilder(query.length());
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            if (!name.equals(parameter) && pair.length() > 0) {
+                upstream.append(upstream.length() == 0 ? "" : "&").append(pair);
+            }
+        }
+        return upstream.length() == 0 ? null : upstream.toString();
+    }
+
+    @Override
+    public boolean applies(HttpServletRequest request, int status, String contentType) {
+        if (status != 200 || !"GET".equals(request.getMethod()) || contentType == null
+                || !contentType.toLowerCase(Locale.ENGLISH).contains("json")) {
+            return false;
+        }
+        String fields = request.getParameter(parameter);
+        return fields != null && fields.trim().length() > 0;
+    }
+
+    @Override
+    public void transform(HttpServletRequest request, InputStream in, OutputStream out) throws IOException {
+        Fields fields = Fields.parse(request.getParameter(parameter));
+        CountingOutputStream counted = new CountingOutputStream(out);
+        JsonParser parser = FACTORY.createParser(in);
+        JsonGenerator generator = FACTORY.createGenerator(counted, JsonEncoding.UTF8);
+        try {
+            while (parser.nextToken() != null) {
+                copy(parser, generator, fields);
+            }
+            generator.flush();
+        } finally {
+            metrics.increment(RESPONSES);
+            metrics.add(BYTES_IN, parser.getCurrentLocation().getByteOffset());
+            metrics.add(BYTES_OUT, counted.count);
+            parser.close();
+        }
+    }
+
+    /**
+     * Copies the value the parser is at, keeping only the fields asked for of the records in it.
+     */
+    private static void copy(JsonParser parser, JsonGenerator generator, Fields fields) throws IOException {
+        if (fields == Fields.ALL) {
+            generator.copyCurrentStructure(parser);
+            return;
+        }
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT) {
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                Fields kept;
+                if (name.equals(RECORDS)) {
+                    kept = fields;
+                } else if (ALWAYS_KEPT.contains(name)) {
+                    kept = Fields.ALL;
+                } else {
+                    kept = fields.get(name);
+                }
+                if (kept == null) {
+                    parser.skipChildren();
+                    continue;
+                }
+                generator.writeFieldName(name);
+                copy(parser, generator, kept);
+            }
+            generator.writeEndObject();
+        } else if (token == JsonToken.START_ARRAY) {
+            generator.writeStartArray();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                copy(parser, generator, fields);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.copyCurrentEvent(parser);
+        }
+    }
+
+    /**
+     * The fields asked for of a record, each with the fields asked for of the record it refers to.
+     */
+    private static final class Fields {
+
+        // Every field, when a field is asked for whole.
+        static final Fields ALL = new Fields();
+
+        private final Map<String, Fields> children = new HashMap<String, Fields>();
+
+        static Fields parse(String list) {
+            Fields root = new Fields();
+            for (String path : list.split(",")) {
+                Fields fields = root;
+                String[] names = path.trim().split("\\.");
+                for (int i = 0; i < names.length && fields != ALL; i++) {
+                    String name = names[i].trim().toLowerCase(Locale.ENGLISH);
+                    if (name.length() == 0) {
+                        break;
+                    }
+                    Fields child = fields.children.get(name);
+                    if (i == names.length - 1) {
+                        child = ALL;
+                    } else if (child == null) {
+                        child = new Fields();
+                    }
+                    fields.children.put(name, child);
+                    fields = child;
+                }
+            }
+            return root;
+        }
+
+        Fields get(String name) {
+            return children.get(name.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the {@link ProxyServlet}'s upstream calls over the hosts listed in remote_host. Each call goes to
+ * the host the policy picks among the healthy ones:
+ * <ul>
+ *     <li>{@code round_robin} takes them in turn,</li>
+ *     <li>{@code least_in_flight} takes the one with the fewest calls in flight, and</li>
+ *     <li>{@code ewma} takes the one with the lowest moving average of its response time, weighted by the
+ *     calls it has in flight, so a host that slows down soon gets less traffic.</li>
+ * </ul>
+ * Health is tracked passively from the calls themselves: a host that fails {@code maxFailures} calls in a
+ * row is ejected for {@code ejectMillis}, and gets traffic again afterwards. If every host is ejected, they
+ * are all used anyway rather than failing every call.
+ * <p>
+ * With circuit_breaker set, each host also gets a {@link CircuitBreaker}. Unlike ejection, an open breaker
+ * is never overridden: a host whose breaker is open gets no calls until it lets probes through again.
+ */
+final class LoadBalancer {
+
+    static final String RETRIES = "upstream.retries";
+
+    // Requests that may be sent again on another host: idempotent, and without a body to replay.
+    static final Set<String> RETRYABLE_VERBS = new TreeSet<String>(Arrays.asList("DELETE", "GET", "HEAD", "OPTIONS"));
+
+    // How much of each new response time goes into a host's moving average.
+    private static final double EWMA_WEIGHT = 0.3;
+
+    enum Policy {
+        ROUND_ROBIN, LEAST_IN_FLIGHT, EWMA;
+
+        static Policy of(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("Unknown balancing policy [%s]", name));
+            }
+        }
+    }
+
+    private final List<Host> hosts;
+    private final Policy policy;
+    private final int maxFailures;
+    private final long ejectMillis;
+    private final AtomicInteger next = new AtomicInteger();
+
+    LoadBalancer(String[] urls, Policy policy, int maxFailures, long ejectMillis, ProxyMetrics metrics) {
+        List<Host> hosts = new ArrayList<Host>(urls.length);
+        for (String url : urls) {
+            hosts.add(new Host(url.trim(), metrics));
+        }
+        this.hosts = Collections.unmodifiableList(hosts);
+        this.policy = policy;
+        this.maxFailures = Math.max(1, maxFailures);
+        this.ejectMillis = ejectMillis;
+    }
+
+    List<Host> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * Gives every host a circuit breaker of its own. Called once, before any call is made.
+     */
+    void addBreakers(long windowMillis, int minCalls, double failureRatio, long slowCallMillis, double slowCallRatio,
+                     long openMillis, int probes, ProxyMetrics metrics) {
+        for (Host host : hosts) {
+            host.breaker = new CircuitBreaker(host.name, windowMillis, minCalls, failureRatio, slowCallMillis,
+                    slowCallRatio, openMillis, probes, metrics);
+        }
+    }
+
+    /**
+     * @param tried the hosts this request has already been sent to.
+     * @return the host to send the request to next, or null if it has been sent to every one whose breaker
+     * isn't open.
+     */
+    Host choose(Collection<Host> tried) {
+        long now = System.currentTimeMillis();
+        List<Host> available = new ArrayList<Host>(hosts.size());
+        for (Host host : hosts) {
+            if (!tried.contains(host) && host.isAvailable()) {
+                available.add(host);
+            }
+        }
+        List<Host> candidates = new ArrayList<Host>(available.size());
+        for (Host host : available) {
+            if (host.ejectedUntil <= now) {
+                candidates.add(host);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates = available;
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        // Ties go round robin too, so an idle pool doesn't send everything to the first host.
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        Host chosen = candidates.get(start);
+        if (policy != Policy.ROUND_ROBIN) {
+            for (int i = 1; i < candidates.size(); i++) {
+                Host host = candidates.get((start + i) % candidates.size());
+                if (policy == Policy.LEAST_IN_FLIGHT ? host.inFlight.get() < chosen.inFlight.get()
+                        : host.load() < chosen.load()) {
+                    chosen = host;
+                }
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * @return how many seconds a call turned away because every host's breaker is open should wait.
+     */
+    long getRetryAfterSeconds() {
+        long seconds = Long.MAX_VALUE;
+        for (Host host : hosts) {
+            if (host.breaker != null) {
+                seconds = Math.min(seconds, host.breaker.getRetryAfterSeconds());
+            }
+        }
+        return seconds == Long.MAX_VALUE ? 1 : seconds;
+    }
+
+    /**
+     * @return whether the status says the host, rather than the request, is at fault.
+     */
+    static boolean isHostFailure(int status) {
+        return status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * One remote host and what the balancer knows about it.
+     */
+    final class Host {
+
+        private final String url;
+        private final String name;
+        private final ProxyMetrics metrics;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile double ewmaNanos;
+        private volatile long ejectedUntil;
+        private volatile CircuitBreaker breaker;
+
+        private Host(String url, ProxyMetrics metrics) {
+            this.url = url;
+            this.name = "upstream." + URI.create(url).getAuthority();
+            this.metrics = metrics;
+            metrics.register(name + ".in_flight", new ProxyMetrics.Gauge() {
+                @Override
+                public double value() {
+                    return inFlight.get();
+                }
+            });
+            metrics.register(name + ".ewma_millis", new ProxyMetrics.Gauge() {
+                @Override
+                public double value() {
+                    return ewmaNanos / 1000000;
+                }
+            });
+            metrics.register(name + ".ejected", new ProxyMetrics.Gauge() {
+                @Override
+                public double value() {
+                    return ejectedUntil > System.currentTimeMillis() ? 1 : 0;
+                }
+            });
+        }
+
+        /**
+         * The scheme, host and port, and any path prefix, the request's path is appended to.
+         */
+        String getUrl() {
+            return url;
+        }
+
+        /**
+         * Asks the host's breaker, if it has one, to let a call through. Every call that is let through must be
+         * followed by {@link #record} or {@link #release}.
+         *
+         * @throws CircuitBreaker.OpenException if the breaker is open.
+         */
+        void acquire() throws CircuitBreaker.OpenException {
+            CircuitBreaker breaker = this.breaker;
+            if (breaker != null && !breaker.tryAcquire()) {
+                throw new CircuitBreaker.OpenException(breaker.getRetryAfterSeconds());
+            }
+        }
+
+        /**
+         * Counts the outcome of a call {@link #acquire} let through in the host's breaker.
+         *
+         * @param failed whether the call failed or was answered with a 5xx status.
+         */
+        void record(boolean failed, long nanos) {
+            CircuitBreaker breaker = this.breaker;
+            if (breaker != null) {
+                breaker.record(failed, nanos);
+            }
+        }
+
+        /**
+         * Hands back a call {@link #acquire} let through whose outcome says nothing about the host.
+         */
+        void release() {
+            CircuitBreaker breaker = this.breaker;
+            if (breaker != null) {
+                breaker.release();
+            }
+        }
+
+        /**
+         * Counts a call to the host until {@link #finished} is called for it.
+         */
+        void started() {
+            inFlight.incrementAndGet();
+        }
+
+        /**
+         * @param failed whether the call failed in a way that says something about the host: it couldn't be
+         * made, or the host answered that it or its gateway is unavailable.
+         * @param nanos how long the host took to answer.
+         */
+        void finished(boolean failed, long nanos) {
+            inFlight.decrementAndGet();
+            metrics.increment(name + (failed ? ".failures" : ".successes"));
+            synchronized (this) {
+                ewmaNanos = ewmaNanos == 0 ? nanos : ewmaNanos + EWMA_WEIGHT * (nanos - ewmaNanos);
+            }
+            if (!failed) {
+                failures.set(0);
+            } else if (failures.incrementAndGet() >= maxFailures) {
+                failures.set(0);
+                ejectedUntil = System.currentTimeMillis() + ejectMillis;
+                metrics.increment(name + ".ejections");
+            }
+        }
+
+        private boolean isAvailable() {
+            CircuitBreaker breaker = this.breaker;
+            return breaker == null || breaker.isAvailable();
+        }
+
+        private double load() {
+            return ewmaNanos * (inFlight.get() + 1);
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+}
@@ -26,9 +26,14 @@
 
 package servlets;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpException;
-import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicNameValuePair;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -41,6 +46,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A Servlet for handeling OAuth flow.
@@ -101,22 +108,24 @@ public class OAuthServlet extends HttpServlet {
 
                 String code = request.getParameter("code");
 
-                HttpClient httpclient = new HttpClient();
+                CloseableHttpClient httpclient = HttpClients.createDefault();
 
-                PostMethod post = new PostMethod(tokenUrl);
-                post.addParameter("code", code);
-                post.addParameter("grant_type", "authorization_code");
-                post.addParameter("client_id", clientId);
-                post.addParameter("client_secret", clientSecret);
-                post.addParameter("redirect_uri", redirectUri);
+                HttpPost post = new HttpPost(tokenUrl);
+                List<NameValuePair> parameters = new ArrayList<NameValuePair>();
+                parameters.add(new BasicNameValuePair("code", code));
+                parameters.add(new BasicNameValuePair("grant_type", "authorization_code"));
+                parameters.add(new BasicNameValuePair("client_id", clientId));
+                parameters.add(new BasicNameValuePair("client_secret", clientSecret));
+                parameters.add(new BasicNameValuePair("redirect_uri", redirectUri));
+                post.setEntity(new UrlEncodedFormEntity(parameters, "UTF-8"));
 
                 try {
-                    httpclient.executeMethod(post);
+                    CloseableHttpResponse tokenResponse = httpclient.execute(post);
 
                     try {
                         JSONObject authResponse = new JSONObject(
                                 new JSONTokener(new InputStreamReader(
-                                        post.getResponseBodyAsStream())));
+                                        tokenResponse.getEntity().getContent())));
                         System.out.println("xAuth response: "
                                 + authResponse.toString(2));
 
@@ -130,12 +139,13 @@ public class OAuthServlet extends HttpServlet {
                         e.printStackTrace();
                         throw new ServletException(e);
                     }
-                } catch (HttpException e) {
+                } catch (ClientProtocolException e) {
                     e.printStackTrace();
                     throw new ServletException(e);
                 }
                 finally {
                     post.releaseConnection();
+                    httpclient.close();
                 }
             }
 
@@ -0,0 +1,459 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Fetches the next pages of a query result while the client is still reading the current one. A canvas app
+ * that walks a large result otherwise pays a round trip to the remote host for every {@code nextRecordsUrl}.
+ * <p>
+ * When a page of a query result with a {@code nextRecordsUrl} goes through the proxy, the pages after it are
+ * fetched in the background, up to {@code depth} pages ahead, with the headers of the request that asked for
+ * it. They are kept under the request's OAuth token for {@code ttl} milliseconds and served once, to the
+ * first request for that URL made with the same token; serving one tops the chain back up. A request for a
+ * page that is still on its way waits for it rather than fetching it again.
+ * <p>
+ * Prefetching never competes with clients: a page is only fetched when one of the prefetch threads is free
+ * and the bulkhead and breaker let it through, and it is only kept while all pages held fit in
+ * {@code maxBytes}. A page that can't be fetched or kept is simply fetched by the client when it asks.
+ */
+final class PagePrefetch {
+
+    static final String PREFETCHED = "prefetch.prefetched";
+    static final String HITS       = "prefetch.hits";
+    static final String WASTED     = "prefetch.wasted";
+    static final String DROPPED    = "prefetch.dropped";
+    static final String BYTES      = "prefetch.bytes";
+
+    // Salesforce puts nextRecordsUrl ahead of the records, so only the start of a page is looked at.
+    static final int HEAD_BYTES = 2048;
+
+    private static final Pattern QUERY = Pattern.compile("/services/data/v\\d+\\.\\d+/(query|queryAll)(/.*)?");
+    private static final Pattern NEXT_RECORDS_URL = Pattern.compile("\"nextRecordsUrl\"\\s*:\\s*\"(/services/data/[^\"]+)\"");
+
+    /**
+     * Fetches one page from the remote host.
+     */
+    interface Fetcher {
+        /**
+         * @param headers the request headers to send, as name and value pairs.
+         * @return the page as the remote host sent it, or null if it couldn't be fetched within the size.
+         */
+        BufferedResponse fetch(String target, List<String> headers, long maxBytes) throws IOException;
+    }
+
+    private final int depth;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final int threads;
+    private final HeaderPolicy headerPolicy;
+    private final Fetcher fetcher;
+    private final ProxyMetrics metrics;
+    private final ConcurrentMap<String, Page> pages = new ConcurrentHashMap<String, Page>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger fetching = new AtomicInteger();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param depth how many pages to fetch ahead of the client.
+     * @param maxBytes the most body bytes held across all prefetched pages.
+     * @param threads the most pages fetched at once.
+     */
+    PagePrefetch(int depth, long maxBytes, long ttlMillis, int threads, HeaderPolicy headerPolicy, Fetcher fetcher,
+                 ProxyMetrics metrics) {
+        this.depth = depth;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.threads = Math.max(1, threads);
+        this.headerPolicy = headerPolicy;
+        this.fetcher = fetcher;
+        this.metrics = metrics;
+        this.executor = Executors.newScheduledThreadPool(this.threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "proxy-prefetch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        metrics.register(BYTES, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return bytes.get();
+            }
+        });
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Takes the prefetched page the request asks for, if there is one.
+     *
+     * @param target the request's path and query as they are sent upstream.
+     * @param wait whether to wait for a page that is still being fetched. One that isn't waited for is dropped.
+     * @return the page as the remote host sent it, or null if the request has to go upstream.
+     */
+    BufferedResponse take(HttpServletRequest request, String target, boolean wait) {
+        if (!"GET".equals(request.getMethod()) || request.getHeader("Authorization") == null) {
+            return null;
+        }
+        Page page = pages.remove(ResponseCache.scope(request) + ' ' + target);
+        if (page == null) {
+            return null;
+        }
+        page.taken();
+        if (!wait && !page.response.isDone()) {
+            return null;
+        }
+        BufferedResponse response;
+        try {
+            response = page.response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+        if (response != null) {
+            metrics.increment(HITS);
+        }
+        return response;
+    }
+
+    /**
+     * Starts prefetching the pages after a page of a query result held in memory.
+     */
+    void follow(HttpServletRequest request, BufferedResponse page) {
+        if (!follows(request, page.getStatus())) {
+            return;
+        }
+        byte[] body = page.getBody();
+        String next = nextRecordsUrl(body, body.length, page.getHeader("Content-Encoding"));
+        if (next != null) {
+            prefetch(chain(request), next, depth);
+        }
+    }
+
+    /**
+     * Watches a page of a query result as it streams through, and starts prefetching the pages after it as
+     * soon as its start has been read.
+     *
+     * @return the body to read, which is the one given unless the response is a page of a query result.
+     */
+    InputStream follow(HttpServletRequest request, int status, String contentEncoding, InputStream body) {
+        if (!follows(request, status)) {
+            return body;
+        }
+        return new Head(body, chain(request), contentEncoding);
+    }
+
+    private static boolean follows(HttpServletRequest request, int status) {
+        return status == 200 && "GET".equals(request.getMethod()) && request.getHeader("Authorization") != null
+                && QUERY.matcher(request.getRequestURI()).matches();
+    }
+
+    /**
+     * Takes what the prefetches need of the request while it is still being served.
+     */
+    private Chain chain(HttpServletRequest request) {
+        final List<String> headers = new ArrayList<String>();
+        headerPolicy.copyRequestHeaders(request, new HeaderPolicy.Sink() {
+            @Override
+            public void add(String name, String value) {
+                String key = name.toLowerCase(Locale.ROOT);
+                // The client's validators and ranges are for the page it asked for, not the ones after it.
+                if (!key.startsWith("if-") && !key.equals("range")) {
+                    headers.add(name);
+                    headers.add(value);
+                }
+            }
+        });
+        return new Chain(ResponseCache.scope(request), Collections.unmodifiableList(headers));
+    }
+
+    /**
+     * Makes sure the page at the URL and the ones after it are fetched, up to {@code remaining} pages.
+     */
+    private void prefetch(final Chain chain, String url, final int remaining) {
+        if (remaining <= 0) {
+            return;
+        }
+        String key = chain.scope + ' ' + url;
+        Page page = pages.get(key);
+        if (page == null) {
+            if (fetching.get() >= threads || bytes.get() >= maxBytes) {
+                metrics.increment(DROPPED);
+                return;
+            }
+            Page created = new Page(key);
+            page = pages.putIfAbsent(key, created);
+            if (page == null) {
+                page = created;
+                start(chain, url, page);
+            }
+        }
+        final Page fetched = page;
+        fetched.response.thenRun(new Runnable() {
+            @Override
+            public void run() {
+                if (fetched.next != null) {
+                    prefetch(chain, fetched.next, remaining - 1);
+                }
+            }
+        });
+    }
+
+    private void start(final Chain chain, final String url, final Page page) {
+        fetching.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    BufferedResponse response = null;
+                    try {
+                        response = fetcher.fetch(url, chain.headers, maxBytes);
+                    } catch (IOException e) {
+                        // Left to the client to fetch.
+                    } catch (RuntimeException e) {
+                        // Likewise.
+                    } finally {
+                        fetching.decrementAndGet();
+                    }
+                    store(page, response);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fetching.decrementAndGet();
+            store(page, null);
+        }
+    }
+
+    private void store(final Page page, BufferedResponse response) {
+        if (response == null || response.getStatus() != 200 || !page.hold(response.size())) {
+            pages.remove(page.key, page);
+            metrics.increment(DROPPED);
+            page.response.complete(null);
+            return;
+        }
+        byte[] body = response.getBody();
+        page.next = nextRecordsUrl(body, body.length, response.getHeader("Content-Encoding"));
+        metrics.increment(PREFETCHED);
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (pages.remove(page.key, page)) {
+                        page.taken();
+                        metrics.increment(WASTED);
+                    }
+                }
+            }, ttlMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+        page.response.complete(response);
+    }
+
+    /**
+     * @param head the start of a body as the remote host sent it.
+     * @return the query result's {@code nextRecordsUrl}, or null if it has none or can't be read.
+     */
+    static String nextRecordsUrl(byte[] head, int length, String contentEncoding) {
+        String text;
+        if (contentEncoding == null || contentEncoding.equalsIgnoreCase("identity")) {
+            text = new String(head, 0, Math.min(length, HEAD_BYTES), StandardCharsets.UTF_8);
+        } else if (Compression.canDecode(contentEncoding)) {
+            byte[] decoded = new byte[HEAD_BYTES];
+            int read = 0;
+            try {
+                InputStream in = new ByteArrayInputStream(head, 0, length);
+                in = Compression.isGzip(contentEncoding) ? new GZIPInputStream(in) : new InflaterInputStream(in);
+                for (int n; read < decoded.length && (n = in.read(decoded, read, decoded.length - read)) > 0; ) {
+                    read += n;
+                }
+            } catch (IOException e) {
+                // Only the start of the body was captured; what could be decoded of it is enough.
+            }
+            text = new String(decoded, 0, read, StandardCharsets.UTF_8);
+        } else {
+            return null;
+        }
+        // A child relationship inside the records has a nextRecordsUrl of its own.
+        int records = text.indexOf("\"records\"");
+        Matcher matcher = NEXT_RECORDS_URL.matcher(text);
+        return matcher.find() && (records < 0 || matcher.start() < records) ? matcher.group(1) : null;
+    }
+
+    /**
+     * The token and headers the pages after one the client asked for are fetched with.
+     */
+    private static final class Chain {
+
+        private final String scope;
+        private final List<String> headers;
+
+        private Chain(String scope, List<String> headers) {
+            this.scope = scope;
+            this.headers = headers;
+        }
+    }
+
+    /**
+     * A page being fetched or held. Completes with null if it couldn't be fetched or kept.
+     */
+    private final class Page {
+
+        private final String key;
+        private final CompletableFuture<BufferedResponse> response = new CompletableFuture<BufferedResponse>();
+        private volatile String next;
+        private long size;
+        private boolean taken;
+
+        private Page(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Counts the page against the memory it may take, unless it has already been taken.
+         */
+        private synchronized boolean hold(long size) {
+            if (taken) {
+                return true;
+            }
+            if (bytes.addAndGet(size) > maxBytes) {
+                bytes.addAndGet(-size);
+                return false;
+            }
+            this.size = size;
+            return true;
+        }
+
+        /**
+         * Gives back the memory the page took, once it is out of the map.
+         */
+        private synchronized void taken() {
+            taken = true;
+            bytes.addAndGet(-size);
+            size = 0;
+        }
+    }
+
+    /**
+     * Captures the start of a body as it is read and, once it has it, looks for the next page.
+     */
+    private final class Head extends FilterInputStream {
+
+        private final Chain chain;
+        private final String contentEncoding;
+        private final byte[] head = new byte[HEAD_BYTES];
+        private int length;
+        private boolean done;
+
+        private Head(InputStream in, Chain chain, String contentEncoding) {
+            super(in);
+            this.chain = chain;
+            this.contentEncoding = contentEncoding;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                found();
+            } else if (!done) {
+                head[length++] = (byte) b;
+                if (length == head.length) {
+                    found();
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n < 0) {
+                found();
+            } else if (!done) {
+                int captured = Math.min(n, head.length - length);
+                System.arraycopy(buffer, offset, head, length, captured);
+                length += captured;
+                if (length == head.length) {
+                    found();
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // A decoder can stop at the end of its data without reading to the end of the stream.
+            found();
+            super.close();
+        }
+
+        private void found() {
+            if (done) {
+                return;
+            }
+            done = true;
+            String next = nextRecordsUrl(head, length, contentEncoding);
+            if (next != null) {
+                prefetch(chain, next, depth);
+            }
+        }
+    }
+}
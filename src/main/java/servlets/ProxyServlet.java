@@ -26,23 +26,116 @@
 
 package servlets;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpOptions;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.util.EntityUtils;
+
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Enumeration;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * ServerSide proxy for proxying request to remote server to get around cross domain issues.
  * This Proxy is only provided as an example and is provided as-is.
+ * <p>
+ * Upstream calls go through a pool of keep-alive connections, so consecutive requests to the remote host
+ * reuse an open connection instead of paying for a new TCP and TLS handshake each time. The pool is sized
+ * with the max_connections_per_host and max_total_connections init parameters, and connections idle for
+ * longer than idle_timeout milliseconds are closed. A call waits at most connection_wait_timeout milliseconds
+ * for a pooled connection, and is answered with a 503 if none comes free. Pool statistics are kept in a {@link ProxyMetrics}
+ * stored in the servlet context, and are served at metrics_path when that init parameter is set.
+ * <p>
+ * With the async init parameter set, calls are proxied without holding a container thread while the
+ * upstream works, see {@link AsyncProxy}. This needs the servlet registered with async support, for
+ * example {@code <async-supported>true</async-supported>} in a Servlet 3.0 deployment descriptor;
+ * otherwise the proxy falls back to the blocking client. async_timeout bounds each call in milliseconds, and
+ * async_max_body_size the request and response bodies in bytes, since this mode buffers them.
+ * <p>
+ * Setting cache_size to a number of bytes turns on a {@link ResponseCache} for GET responses, which keeps
+ * responses of up to cache_max_entry_size bytes. With coalesce set, identical GETs that arrive while one of
+ * them is in flight share its response, see {@link SingleFlight}; coalesce_max_size bounds the responses
+ * that are shared.
+ * <p>
+ * With compression set, the proxy asks the remote host for gzip or deflate responses and
+ * negotiates the coding with each client, see {@link Compression}. Uncompressed text and JSON bodies of at
+ * least compression_min_size bytes are compressed for clients that accept it.
+ * <p>
+ * max_in_flight caps the upstream calls in flight at once, see {@link Bulkhead}, and circuit_breaker stops
+ * calling a failing remote host for a while, see {@link CircuitBreaker}. Each host has a breaker of its own,
+ * and calls go to the others while it is open. Calls turned away by the bulkhead, or because every host's
+ * breaker is open, are answered with a 503 and a Retry-After header straight away.
+ * <p>
+ * Setting rate_limit to a number of requests a second limits each OAuth token to that rate, with bursts of
+ * up to rate_limit_burst requests, see {@link RateLimiter}. Requests over the limit are answered with a 429
+ * and a Retry-After header. At most rate_limit_max_keys tokens are tracked at once.
+ * <p>
+ * remote_host may list several hosts separated by commas. Calls are spread over them according to the
+ * balancing policy, and hosts that keep failing are left out for a while, see {@link LoadBalancer}. GET,
+ * HEAD, OPTIONS and DELETE requests a host fails are sent to another one, up to retries times. Responses are
+ * cached and coalesced under the first host's URL, whichever host answered.
+ * <p>
+ * With hedge set, GET, HEAD and OPTIONS calls that are slower than the hedge_percentile of recent calls
+ * are sent a second time, and the first answer wins, see {@link Hedging}. hedge_budget caps the extra calls
+ * as a share of the requests.
+ * <p>
+ * Setting batch_window to a number of milliseconds batches the sObject and query GETs made with one OAuth
+ * token within that window into a single Composite Batch call of up to batch_max_size subrequests, see
+ * {@link CompositeBatch}.
+ * <p>
+ * Headers are passed on according to a {@link HeaderPolicy}. Hop-by-hop headers are left out both ways,
+ * along with any listed in drop_request_headers and drop_response_headers, and unless rewrite_location is
+ * false, redirects to a remote host point back at the proxy. With forwarded_headers set, the proxy adds
+ * itself to Via under the via name and sends the X-Forwarded headers upstream, replacing any
+ * X-Forwarded-Proto and X-Forwarded-Host the client sent.
+ * <p>
+ * With projection_param set, a client can name the fields it wants of a JSON response in that query
+ * parameter, and the rest are left out on the way through, see {@link JsonProjection}. Subclasses can plug
+ * in other rewrites with {@link #createResponseTransform()}.
+ * <p>
+ * With prefetch_pages set, the proxy fetches that many pages of a query result ahead of the client by
+ * following its nextRecordsUrl, and keeps them for prefetch_ttl milliseconds for the client's next request
+ * made with the same token, see {@link PagePrefetch}. At most prefetch_threads pages are fetched at once,
+ * and at most prefetch_max_size bytes of them are held.
  */
 public class ProxyServlet extends HttpServlet {
 
@@ -52,6 +145,52 @@ public class ProxyServlet extends HttpServlet {
     private static final String INIT_PARAM_READ_TIMEOUT         = "read_timeout";
     private static final String INIT_PARAM_BUFFER_SIZE          = "buffer_size";
     private static final String INIT_PARAM_REMOTE_HOST          = "remote_host";
+    private static final String INIT_PARAM_MAX_CONNECTIONS_PER_HOST = "max_connections_per_host";
+    private static final String INIT_PARAM_MAX_TOTAL_CONNECTIONS    = "max_total_connections";
+    private static final String INIT_PARAM_IDLE_TIMEOUT             = "idle_timeout";
+    private static final String INIT_PARAM_CONNECTION_WAIT_TIMEOUT  = "connection_wait_timeout";
+    private static final String INIT_PARAM_METRICS_PATH             = "metrics_path";
+    private static final String INIT_PARAM_ASYNC                    = "async";
+    private static final String INIT_PARAM_ASYNC_TIMEOUT            = "async_timeout";
+    private static final String INIT_PARAM_ASYNC_MAX_BODY_SIZE      = "async_max_body_size";
+    private static final String INIT_PARAM_CACHE_SIZE               = "cache_size";
+    private static final String INIT_PARAM_CACHE_MAX_ENTRY_SIZE     = "cache_max_entry_size";
+    private static final String INIT_PARAM_COALESCE                 = "coalesce";
+    private static final String INIT_PARAM_COALESCE_MAX_SIZE        = "coalesce_max_size";
+    private static final String INIT_PARAM_COMPRESSION              = "compression";
+    private static final String INIT_PARAM_COMPRESSION_MIN_SIZE     = "compression_min_size";
+    private static final String INIT_PARAM_MAX_IN_FLIGHT            = "max_in_flight";
+    private static final String INIT_PARAM_CIRCUIT_BREAKER          = "circuit_breaker";
+    private static final String INIT_PARAM_BREAKER_WINDOW           = "breaker_window";
+    private static final String INIT_PARAM_BREAKER_MIN_CALLS        = "breaker_min_calls";
+    private static final String INIT_PARAM_BREAKER_FAILURE_RATIO    = "breaker_failure_ratio";
+    private static final String INIT_PARAM_BREAKER_SLOW_CALL        = "breaker_slow_call";
+    private static final String INIT_PARAM_BREAKER_SLOW_CALL_RATIO  = "breaker_slow_call_ratio";
+    private static final String INIT_PARAM_BREAKER_OPEN_TIME        = "breaker_open_time";
+    private static final String INIT_PARAM_BREAKER_PROBES           = "breaker_probes";
+    private static final String INIT_PARAM_RATE_LIMIT               = "rate_limit";
+    private static final String INIT_PARAM_RATE_LIMIT_BURST         = "rate_limit_burst";
+    private static final String INIT_PARAM_RATE_LIMIT_MAX_KEYS      = "rate_limit_max_keys";
+    private static final String INIT_PARAM_BALANCING                = "balancing";
+    private static final String INIT_PARAM_MAX_HOST_FAILURES        = "max_host_failures";
+    private static final String INIT_PARAM_HOST_EJECT_TIME          = "host_eject_time";
+    private static final String INIT_PARAM_RETRIES                  = "retries";
+    private static final String INIT_PARAM_HEDGE                    = "hedge";
+    private static final String INIT_PARAM_HEDGE_PERCENTILE         = "hedge_percentile";
+    private static final String INIT_PARAM_HEDGE_MIN_DELAY          = "hedge_min_delay";
+    private static final String INIT_PARAM_HEDGE_BUDGET             = "hedge_budget";
+    private static final String INIT_PARAM_BATCH_WINDOW             = "batch_window";
+    private static final String INIT_PARAM_BATCH_MAX_SIZE           = "batch_max_size";
+    private static final String INIT_PARAM_FORWARDED_HEADERS        = "forwarded_headers";
+    private static final String INIT_PARAM_VIA                      = "via";
+    private static final String INIT_PARAM_REWRITE_LOCATION         = "rewrite_location";
+    private static final String INIT_PARAM_DROP_REQUEST_HEADERS     = "drop_request_headers";
+    private static final String INIT_PARAM_DROP_RESPONSE_HEADERS    = "drop_response_headers";
+    private static final String INIT_PARAM_PROJECTION_PARAM         = "projection_param";
+    private static final String INIT_PARAM_PREFETCH_PAGES           = "prefetch_pages";
+    private static final String INIT_PARAM_PREFETCH_MAX_SIZE        = "prefetch_max_size";
+    private static final String INIT_PARAM_PREFETCH_TTL             = "prefetch_ttl";
+    private static final String INIT_PARAM_PREFETCH_THREADS         = "prefetch_threads";
 
     // Configurable variables in web.xml
     private int     connectionTimeout;
@@ -59,6 +198,70 @@ public class ProxyServlet extends HttpServlet {
     private int     readTimeout;
     private int     bufferSize;
     private String  remoteHost;
+    private int     maxConnectionsPerHost;
+    private int     maxTotalConnections;
+    private int     idleTimeout;
+    private int     connectionWaitTimeout;
+    private String  metricsPath;
+    private boolean async;
+    private int     asyncTimeout;
+    private int     asyncMaxBodySize;
+    private int     cacheSize;
+    private int     cacheMaxEntrySize;
+    private boolean coalesce;
+    private int     coalesceMaxSize;
+    private boolean compress;
+    private int     compressionMinSize;
+    private int     maxInFlight;
+    private boolean circuitBreaker;
+    private int     breakerWindow;
+    private int     breakerMinCalls;
+    private double  breakerFailureRatio;
+    private int     breakerSlowCall;
+    private double  breakerSlowCallRatio;
+    private int     breakerOpenTime;
+    private int     breakerProbes;
+    private double  rateLimit;
+    private int     rateLimitBurst;
+    private int     rateLimitMaxKeys;
+    private String  balancing;
+    private int     maxHostFailures;
+    private int     hostEjectTime;
+    private int     retries;
+    private boolean hedge;
+    private double  hedgePercentile;
+    private int     hedgeMinDelay;
+    private double  hedgeBudget;
+    private int     batchWindow;
+    private int     batchMaxSize;
+    private boolean forwardedHeaders;
+    private String  via;
+    private boolean rewriteLocation;
+    private String  dropRequestHeaders;
+    private String  dropResponseHeaders;
+    private String  projectionParam;
+    private int     prefetchPages;
+    private int     prefetchMaxSize;
+    private int     prefetchTtl;
+    private int     prefetchThreads;
+
+    private ProxyMetrics metrics;
+    private InstrumentedConnectionManager connectionManager;
+    private IdleConnectionEvictor idleConnectionEvictor;
+    private CloseableHttpClient httpClient;
+    private BufferPool bufferPool;
+    private ResponseCache responseCache;
+    private SingleFlight singleFlight;
+    private Compression compression;
+    private Bulkhead bulkhead;
+    private RateLimiter rateLimiter;
+    private LoadBalancer loadBalancer;
+    private Hedging hedging;
+    private CompositeBatch compositeBatch;
+    private HeaderPolicy headerPolicy;
+    private ResponseTransform responseTransform;
+    private PagePrefetch pagePrefetch;
+    private AsyncProxy asyncProxy;
 
     @Override
     public void init(ServletConfig config) throws ServletException {
@@ -68,6 +271,167 @@ public class ProxyServlet extends HttpServlet {
         readTimeout       = getConfigParam(INIT_PARAM_READ_TIMEOUT, 0);
         bufferSize        = getConfigParam(INIT_PARAM_BUFFER_SIZE, 8 * 1024);
         remoteHost        = getConfigParam(INIT_PARAM_REMOTE_HOST, null);
+        maxConnectionsPerHost = getConfigParam(INIT_PARAM_MAX_CONNECTIONS_PER_HOST, 20);
+        maxTotalConnections   = getConfigParam(INIT_PARAM_MAX_TOTAL_CONNECTIONS, 100);
+        idleTimeout           = getConfigParam(INIT_PARAM_IDLE_TIMEOUT, 60 * 1000);
+        connectionWaitTimeout = getConfigParam(INIT_PARAM_CONNECTION_WAIT_TIMEOUT, 5000);
+        metricsPath           = getConfigParam(INIT_PARAM_METRICS_PATH, null);
+        async                 = getConfigParam(INIT_PARAM_ASYNC, false);
+        asyncTimeout          = getConfigParam(INIT_PARAM_ASYNC_TIMEOUT, 30 * 1000);
+        asyncMaxBodySize      = getConfigParam(INIT_PARAM_ASYNC_MAX_BODY_SIZE, 10 * 1024 * 1024);
+        cacheSize             = getConfigParam(INIT_PARAM_CACHE_SIZE, 0);
+        cacheMaxEntrySize     = getConfigParam(INIT_PARAM_CACHE_MAX_ENTRY_SIZE, 1024 * 1024);
+        coalesce              = getConfigParam(INIT_PARAM_COALESCE, false);
+        coalesceMaxSize       = getConfigParam(INIT_PARAM_COALESCE_MAX_SIZE, 1024 * 1024);
+        compress              = getConfigParam(INIT_PARAM_COMPRESSION, false);
+        compressionMinSize    = getConfigParam(INIT_PARAM_COMPRESSION_MIN_SIZE, 1024);
+        maxInFlight           = getConfigParam(INIT_PARAM_MAX_IN_FLIGHT, 0);
+        circuitBreaker        = getConfigParam(INIT_PARAM_CIRCUIT_BREAKER, false);
+        breakerWindow         = getConfigParam(INIT_PARAM_BREAKER_WINDOW, 10 * 1000);
+        breakerMinCalls       = getConfigParam(INIT_PARAM_BREAKER_MIN_CALLS, 20);
+        breakerFailureRatio   = getConfigParam(INIT_PARAM_BREAKER_FAILURE_RATIO, 0.5);
+        breakerSlowCall       = getConfigParam(INIT_PARAM_BREAKER_SLOW_CALL, 5 * 1000);
+        breakerSlowCallRatio  = getConfigParam(INIT_PARAM_BREAKER_SLOW_CALL_RATIO, 0.8);
+        breakerOpenTime       = getConfigParam(INIT_PARAM_BREAKER_OPEN_TIME, 5 * 1000);
+        breakerProbes         = getConfigParam(INIT_PARAM_BREAKER_PROBES, 3);
+        rateLimit             = getConfigParam(INIT_PARAM_RATE_LIMIT, 0.0);
+        rateLimitBurst        = getConfigParam(INIT_PARAM_RATE_LIMIT_BURST, 0);
+        rateLimitMaxKeys      = getConfigParam(INIT_PARAM_RATE_LIMIT_MAX_KEYS, 10000);
+        balancing             = getConfigParam(INIT_PARAM_BALANCING, "round_robin");
+        maxHostFailures       = getConfigParam(INIT_PARAM_MAX_HOST_FAILURES, 5);
+        hostEjectTime         = getConfigParam(INIT_PARAM_HOST_EJECT_TIME, 30 * 1000);
+        retries               = getConfigParam(INIT_PARAM_RETRIES, 1);
+        hedge                 = getConfigParam(INIT_PARAM_HEDGE, false);
+        hedgePercentile       = getConfigParam(INIT_PARAM_HEDGE_PERCENTILE, 95.0);
+        hedgeMinDelay         = getConfigParam(INIT_PARAM_HEDGE_MIN_DELAY, 10);
+        hedgeBudget           = getConfigParam(INIT_PARAM_HEDGE_BUDGET, 0.1);
+        batchWindow           = getConfigParam(INIT_PARAM_BATCH_WINDOW, 0);
+        batchMaxSize          = getConfigParam(INIT_PARAM_BATCH_MAX_SIZE, CompositeBatch.MAX_CALLS);
+        forwardedHeaders      = getConfigParam(INIT_PARAM_FORWARDED_HEADERS, false);
+        via                   = getConfigParam(INIT_PARAM_VIA, "canvas-proxy");
+        rewriteLocation       = getConfigParam(INIT_PARAM_REWRITE_LOCATION, true);
+        dropRequestHeaders    = getConfigParam(INIT_PARAM_DROP_REQUEST_HEADERS, "");
+        dropResponseHeaders   = getConfigParam(INIT_PARAM_DROP_RESPONSE_HEADERS, "");
+        projectionParam       = getConfigParam(INIT_PARAM_PROJECTION_PARAM, "");
+        prefetchPages         = getConfigParam(INIT_PARAM_PREFETCH_PAGES, 0);
+        prefetchMaxSize       = getConfigParam(INIT_PARAM_PREFETCH_MAX_SIZE, 8 * 1024 * 1024);
+        prefetchTtl           = getConfigParam(INIT_PARAM_PREFETCH_TTL, 30 * 1000);
+        prefetchThreads       = getConfigParam(INIT_PARAM_PREFETCH_THREADS, 4);
+
+        metrics = new ProxyMetrics();
+        getServletContext().setAttribute(ProxyMetrics.class.getName(), metrics);
+
+        // One buffer per call that can be in flight at once.
+        bufferPool = new BufferPool(bufferSize, maxTotalConnections, metrics);
+        if (cacheSize > 0) {
+            responseCache = new ResponseCache(cacheSize, cacheMaxEntrySize, metrics);
+        }
+        if (coalesce) {
+            singleFlight = new SingleFlight(coalesceMaxSize, metrics);
+        }
+        if (compress) {
+            compression = new Compression(compressionMinSize, metrics);
+        }
+        if (maxInFlight > 0) {
+            bulkhead = new Bulkhead(maxInFlight, metrics);
+        }
+        if (rateLimit > 0) {
+            rateLimiter = new RateLimiter(rateLimit, rateLimitBurst, rateLimitMaxKeys, metrics);
+        }
+        if (remoteHost != null) {
+            loadBalancer = new LoadBalancer(remoteHost.split(","), LoadBalancer.Policy.of(balancing), maxHostFailures,
+                    hostEjectTime, metrics);
+            if (circuitBreaker) {
+                loadBalancer.addBreakers(breakerWindow, breakerMinCalls, breakerFailureRatio, breakerSlowCall,
+                        breakerSlowCallRatio, breakerOpenTime, breakerProbes, metrics);
+            }
+        }
+        headerPolicy = new HeaderPolicy(remoteHost != null ? Arrays.asList(remoteHost.split(",")) : Collections.<String>emptyList(),
+                forwardedHeaders ? via : null, rewriteLocation, Arrays.asList(dropRequestHeaders.split(",")),
+                Arrays.asList(dropResponseHeaders.split(",")));
+        if (hedge) {
+            int threads = Math.max(2, (int) Math.ceil(maxTotalConnections * hedgeBudget));
+            hedging = new Hedging(hedgePercentile, hedgeMinDelay, hedgeBudget, threads, metrics);
+        }
+        if (batchWindow > 0) {
+            compositeBatch = new CompositeBatch(batchWindow, batchMaxSize, metrics);
+        }
+        responseTransform = createResponseTransform();
+        if (prefetchPages > 0) {
+            pagePrefetch = new PagePrefetch(prefetchPages, prefetchMaxSize, prefetchTtl, prefetchThreads, headerPolicy,
+                    new PagePrefetch.Fetcher() {
+                        @Override
+                        public BufferedResponse fetch(String target, List<String> headers, long maxBytes)
+                                throws IOException {
+                            return prefetch(target, headers, maxBytes);
+                        }
+                    }, metrics);
+        }
+
+        connectionManager = new InstrumentedConnectionManager(metrics);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        connectionManager.setMaxTotal(maxTotalConnections);
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectionTimeout)
+                        .setSocketTimeout(readTimeout)
+                        .setConnectionRequestTimeout(connectionWaitTimeout)
+                        .setRedirectsEnabled(followRedirects)
+                        .build())
+                // The client is shared by every user of the proxy, so it must never keep cookies of its own.
+                // Cookies sent by the browser are still forwarded as plain headers.
+                .disableCookieManagement()
+                // Codings are negotiated by Compression, so bodies come through as the remote host sent them.
+                .disableContentCompression()
+                .build();
+
+        if (idleTimeout > 0) {
+            idleConnectionEvictor = new IdleConnectionEvictor(connectionManager, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "proxy-idle-connection-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, Math.max(1000, idleTimeout / 2), TimeUnit.MILLISECONDS, idleTimeout, TimeUnit.MILLISECONDS);
+            idleConnectionEvictor.start();
+        }
+
+        if (async) {
+            asyncProxy = new AsyncProxy(maxConnectionsPerHost, maxTotalConnections, connectionTimeout, readTimeout,
+                    connectionWaitTimeout, followRedirects, bufferPool, responseCache, singleFlight, compression, bulkhead, loadBalancer, retries,
+                    hedging, headerPolicy, responseTransform, pagePrefetch, asyncTimeout,
+                    asyncMaxBodySize, metrics);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (asyncProxy != null) {
+            asyncProxy.shutdown();
+        }
+        if (hedging != null) {
+            hedging.shutdown();
+        }
+        if (compositeBatch != null) {
+            compositeBatch.shutdown();
+        }
+        if (pagePrefetch != null) {
+            pagePrefetch.shutdown();
+        }
+        if (idleConnectionEvictor != null) {
+            idleConnectionEvictor.shutdown();
+        }
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                // Shutting down anyway.
+            }
+        }
+        super.destroy();
     }
 
     @Override
@@ -82,6 +446,11 @@ public class ProxyServlet extends HttpServlet {
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (metricsPath != null && metricsPath.equals(req.getRequestURI())) {
+            resp.setContentType("text/plain");
+            resp.getWriter().write(metrics.toString());
+            return;
+        }
         invoke("GET", req, resp);
     }
 
@@ -118,125 +487,721 @@ public class ProxyServlet extends HttpServlet {
         }
 
         String uri = request.getRequestURI();
-        String remoteUrl = remoteHost + uri;
+        String remoteUrl = loadBalancer.getHosts().get(0).getUrl() + uri;
 
         if (request == null || remoteUrl == null || remoteUrl.equalsIgnoreCase(request.getRequestURL().toString())) {
             String.format("Bad preconditions remoteUrl [%s] request.getRequestURL() [%s]", remoteUrl, request.getRequestURL().toString());
             return;
         }
 
+        String query = request.getQueryString();
+        if (responseTransform != null) {
+            query = responseTransform.upstreamQuery(query);
+        }
+        String target = uri;
+        if (query != null) {
+            target = uri + "?" + query;
+            remoteUrl = remoteUrl + "?" + query;
+        }
+
+        if (rateLimiter != null) {
+            long retryAfter = rateLimiter.acquire(RateLimiter.key(request));
+            if (retryAfter > 0) {
+                response.setHeader("Retry-After", String.valueOf(retryAfter));
+                response.sendError(RateLimiter.SC_TOO_MANY_REQUESTS, "rate limit exceeded");
+                return;
+            }
+        }
+
         // Good to Go....
 
-        URL url;
-        HttpURLConnection urlConnection = null;
+        if (pagePrefetch != null) {
+            // Only the blocking path can afford to wait for a page that is still on its way.
+            BufferedResponse page = pagePrefetch.take(request, target, asyncProxy == null || !request.isAsyncSupported());
+            if (page != null) {
+                send(request, response, page);
+                return;
+            }
+        }
+
+        String cacheKey = null;
+        ResponseCache.Entry cached = null;
+        if (responseCache != null) {
+            cacheKey = responseCache.key(verb, request, remoteUrl);
+            if (cacheKey != null) {
+                cached = responseCache.get(cacheKey, request);
+                if (cached != null && responseCache.isFresh(cached, request)) {
+                    send(request, response, responseCache.hit(cached, request));
+                    return;
+                }
+            } else if (ResponseCache.UNSAFE_VERBS.contains(verb)) {
+                // Whatever this does to the resource, the copies in the cache are out of date.
+                responseCache.invalidate(request, remoteUrl);
+            }
+        }
+
+        SingleFlight.Flight flight = null;
+        if (singleFlight != null) {
+            String flightKey = singleFlight.key(verb, request, remoteUrl);
+            if (flightKey != null) {
+                flight = singleFlight.join(flightKey);
+            }
+        }
+
+        CompositeBatch.Call batched = null;
+        if (compositeBatch != null && cached == null && (flight == null || flight.isLeader())) {
+            String batchUrl = CompositeBatch.url(verb, request, query);
+            if (batchUrl != null) {
+                batched = compositeBatch.join(request, batchUrl);
+            }
+        }
+
+        if (asyncProxy != null) {
+            if (request.isAsyncSupported()) {
+                asyncProxy.invoke(verb, request, response, target, cacheKey, cached, flight, batched);
+                return;
+            }
+            // Registered without async support, so the container thread has to carry the call.
+            metrics.increment(AsyncProxy.FALLBACKS);
+        }
+
+        if (flight != null && !flight.isLeader()) {
+            BufferedResponse shared = await(flight.getResponse(), followerTimeout(), SingleFlight.TIMEOUTS);
+            if (shared != null) {
+                send(request, response, shared);
+                return;
+            }
+            // The leader couldn't share its response, so this request goes upstream on its own.
+            flight = null;
+        }
+
+        if (batched != null) {
+            BufferedResponse answer = batch(request, batched);
+            if (answer != null) {
+                send(request, response, answer);
+                if (flight != null) {
+                    flight.complete(answer);
+                }
+                return;
+            }
+        }
+
+        UpstreamCall method = null;
         InputStream inputStream = null;
+        BufferedResponse shared = null;
+        boolean admitted = false;
+        boolean copied = false;
         try
         {
             //System.out.println("Producer URL: " + remoteUrl);
 
-            url = new URL(remoteUrl);
-            urlConnection = (HttpURLConnection)url.openConnection();
+            admitted = admit(response);
+            if (!admitted) {
+                return;
+            }
 
-            urlConnection.setRequestMethod(verb);
-            urlConnection.setInstanceFollowRedirects(followRedirects);
-            urlConnection.setConnectTimeout(connectionTimeout);
-            urlConnection.setDoInput(true);
-            urlConnection.setDoOutput(true);
-            if (readTimeout != 0) urlConnection.setReadTimeout(readTimeout);
+            try {
+                method = execute(verb, request, target, cached);
+            } catch (ConnectionPoolTimeoutException e) {
+                // Every pooled connection stayed busy, which says nothing about the remote host.
+                response.setHeader("Retry-After", "1");
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "no upstream connection available");
+                return;
+            } catch (CircuitBreaker.OpenException e) {
+                response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                return;
+            }
+            int responseCode = method.getStatusCode();
 
-            copyRequestHeaders(request, urlConnection);
+            // The response is kept in memory as well as streamed when the cache or waiting requests want it.
+            BufferedResponse upstream = null;
+            boolean store = false;
+            if (cacheKey != null || flight != null) {
+                upstream = new BufferedResponse(responseCode);
+                for (Header header : method.getResponseHeaders()) {
+                    upstream.addHeader(header.getName(), header.getValue());
+                }
+            }
+            if (cacheKey != null) {
+                if (cached != null && responseCode == HttpStatus.SC_NOT_MODIFIED) {
+                    shared = responseCache.revalidated(cacheKey, cached, upstream, request);
+                    copied = true;
+                    send(request, response, shared);
+                    return;
+                }
+                responseCache.miss();
+                store = responseCache.isStorable(upstream, request);
+                if (!store && cached != null) {
+                    responseCache.remove(cacheKey);
+                }
+            }
 
-            if (verb.equals("PUT") || verb.equals("PATCH") || verb.equals("POST") ) {
-                copyBody(urlConnection, request.getInputStream());
+            Header contentType = method.getResponseHeader("Content-Type");
+            if (contentType != null) {
+                response.setContentType(contentType.getValue());
             }
 
-            response.setContentType(urlConnection.getContentType());
-            if (! "gzip".equalsIgnoreCase(urlConnection.getContentEncoding())) {
-                response.setCharacterEncoding(urlConnection.getContentEncoding());
+            long contentLength = method.getResponseContentLength();
+            Header contentEncoding = method.getResponseHeader("Content-Encoding");
+            String coding = contentEncoding != null ? contentEncoding.getValue() : null;
+            // A body can only be rewritten once its coding is undone.
+            boolean transform = responseTransform != null
+                    && (compression != null ? Compression.canDecode(coding) : coding == null)
+                    && responseTransform.applies(request, responseCode, contentType != null ? contentType.getValue() : null);
+            Compression.Plan plan = Compression.Plan.PASS;
+            if (compression != null) {
+                plan = transform ? compression.negotiateRewritten(request) : compression.negotiate(request, responseCode,
+                        contentEncoding != null ? contentEncoding.getValue() : null,
+                        contentType != null ? contentType.getValue() : null, contentLength);
             }
 
-            int responseCode = urlConnection.getResponseCode();
-            copyResponseHeaders(response, urlConnection);
+            copyResponseHeaders(request, response, method.response, plan, compression != null
+                    && (contentEncoding != null || Compression.isCompressible(response.getContentType())));
+            if (transform) {
+                Header etag = method.getResponseHeader("ETag");
+                if (etag != null) {
+                    response.setHeader("ETag", BufferedResponse.weak(etag.getValue()));
+                }
+            }
 
             response.setStatus(responseCode);
 
-            int contentLength = urlConnection.getContentLength();
-            response.setContentLength(contentLength);
+            if (plan == Compression.Plan.PASS && !transform && contentLength >= 0) {
+                response.setContentLengthLong(contentLength);
+            }
 
-            if (responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+            BufferedResponse complete = upstream;
+            if (responseCode != HttpStatus.SC_NOT_MODIFIED) {
                 OutputStream outputStream = null;
                 try
                 {
-                    inputStream = urlConnection.getInputStream();
-                    outputStream = response.getOutputStream();
-                    byte buffer[] = new byte[bufferSize];
-                    while (true) {
-                        int len = inputStream.read(buffer, 0, bufferSize);
-                        if (len < 0) {
-                            break;
+                    inputStream = method.getResponseBodyAsStream();
+                    if (inputStream != null && pagePrefetch != null) {
+                        inputStream = pagePrefetch.follow(request, responseCode, coding, inputStream);
+                    }
+                    if (inputStream != null) {
+                        if (store || flight != null) {
+                            // Kept as the upstream sent it, coding and all, so every client can be served from it.
+                            long limit = Math.max(store ? responseCache.getMaxEntryBytes() : 0,
+                                    flight != null ? singleFlight.getMaxResponseBytes() : 0);
+                            ByteArrayOutputStream captured = new ByteArrayOutputStream();
+                            byte[] body = null;
+                            if (bufferPool.copy(inputStream, captured, limit + 1) <= limit) {
+                                body = captured.toByteArray();
+                                upstream.setBody(body);
+                                if (store) {
+                                    responseCache.store(cacheKey, upstream, request);
+                                }
+                            }
+                            if (flight != null && (body == null || body.length > singleFlight.getMaxResponseBytes())) {
+                                complete = null;
+                            }
+                            inputStream = new SequenceInputStream(new ByteArrayInputStream(captured.toByteArray()), inputStream);
+                        }
+                        if (contentEncoding != null && (plan == Compression.Plan.DECODE || transform)) {
+                            inputStream = compression.decode(contentEncoding.getValue(), inputStream);
+                        }
+                        outputStream = response.getOutputStream();
+                        if (plan == Compression.Plan.GZIP || plan == Compression.Plan.DEFLATE) {
+                            outputStream = compression.encode(plan, outputStream, bufferSize);
+                        }
+                        if (transform) {
+                            responseTransform.transform(request, inputStream, outputStream);
+                        } else {
+                            bufferPool.copy(inputStream, outputStream);
                         }
-                        outputStream.write(buffer, 0, len);
                     }
                 } finally {
                     try { if (outputStream != null) outputStream.flush(); } catch (IOException e) {}
                     try { if (outputStream != null) outputStream.close(); } catch (IOException e) {}
                 }
             }
+            shared = complete;
+            copied = true;
 
         }
         finally {
+            // A body the copy broke off from, say because the client went away, is cut off rather than read
+            // to the end; closing the stream would read it.
+            if (method != null && !copied) method.abort();
             try { if (inputStream != null) inputStream.close(); } catch (IOException e) {}
-            try { if (urlConnection != null) urlConnection.disconnect(); }  catch (Exception e) {}
+            // Hands the connection back to the pool for the next request instead of closing it.
+            if (method != null) method.releaseConnection();
+            if (admitted) release();
+            if (flight != null) flight.complete(shared);
         }
     }
 
-    protected void copyBody(HttpURLConnection httpURLConnection, InputStream body) throws IOException
-    {
-        OutputStream outputStream = null;
-        try {
-            outputStream = httpURLConnection.getOutputStream();
-            int val;
-            while ((val = body.read()) != -1) {
-                outputStream.write(val);
+    /**
+     * Sends the request to one of the remote hosts. Requests in {@link LoadBalancer#RETRYABLE_VERBS} that a host
+     * fails are sent to another one, up to {@code retries} times, and those in {@link Hedging#VERBS} are hedged
+     * when hedging is on.
+     *
+     * @param target the request's path and query, which are appended to the host's URL.
+     * @throws CircuitBreaker.OpenException if there is no host left whose breaker lets the request through.
+     */
+    private UpstreamCall execute(String verb, HttpServletRequest request, String target, ResponseCache.Entry cached)
+            throws IOException {
+        List<LoadBalancer.Host> tried = new CopyOnWriteArrayList<LoadBalancer.Host>();
+        while (true) {
+            LoadBalancer.Host host = loadBalancer.choose(tried);
+            if (host == null) {
+                throw new CircuitBreaker.OpenException(loadBalancer.getRetryAfterSeconds());
             }
+            tried.add(host);
+            boolean retryable = LoadBalancer.RETRYABLE_VERBS.contains(verb) && tried.size() <= retries
+                    && tried.size() < loadBalancer.getHosts().size();
+
+            UpstreamCall method = prepare(verb, request, host.getUrl() + target, cached);
+            try {
+                if (hedging != null && Hedging.VERBS.contains(verb) && tried.size() == 1) {
+                    method = hedge(verb, target, host, method, tried);
+                } else {
+                    call(host, method, null);
+                }
+            } catch (IOException e) {
+                method.discard();
+                if (!retryable) {
+                    throw e;
+                }
+                metrics.increment(LoadBalancer.RETRIES);
+                continue;
+            } catch (RuntimeException e) {
+                method.discard();
+                throw e;
+            }
+
+            if (!LoadBalancer.isHostFailure(method.getStatusCode()) || !retryable) {
+                return method;
+            }
+            method.discard();
+            metrics.increment(LoadBalancer.RETRIES);
         }
-        finally {
-            try { if (body != null) body.close(); } catch (IOException e) {}
-            try { if (outputStream != null) outputStream.flush(); } catch (IOException e) {}
-            try { if (outputStream != null) outputStream.close(); } catch (IOException e) {}
+    }
+
+    private UpstreamCall prepare(String verb, HttpServletRequest request, String remoteUrl, ResponseCache.Entry cached)
+            throws IOException {
+        HttpRequestBase method = createMethod(verb, remoteUrl);
+
+        copyRequestHeaders(request, method);
+        if (compression != null && request.getHeader("Range") == null) {
+            // The body is decoded here for clients that can't take it, so the upstream can always compress.
+            method.setHeader("Accept-Encoding", Compression.ACCEPT_ENCODING);
+        }
+        if (cached != null) {
+            String[] validators = responseCache.validators(cached);
+            for (int i = 0; i < validators.length; i += 2) {
+                method.setHeader(validators[i], validators[i + 1]);
+            }
         }
+
+        if (method instanceof HttpEntityEnclosingRequestBase) {
+            ((HttpEntityEnclosingRequestBase) method).setEntity(createRequestEntity(request));
+        }
+        return new UpstreamCall(method);
     }
 
-    protected void copyRequestHeaders(HttpServletRequest request, HttpURLConnection connection) {
+    /**
+     * Executes the method against the host, if its breaker lets it through, and tells the balancer and the
+     * breaker how the host did.
+     *
+     * @param winner for a hedged call, where the call that answers first is kept. A call that is aborted
+     * because the other one won says nothing about its host.
+     */
+    private void call(LoadBalancer.Host host, UpstreamCall method, AtomicReference<UpstreamCall> winner) throws IOException {
+        host.acquire();
+        long started = System.nanoTime();
+        host.started();
+        boolean failed = true;
+        boolean errored = true;
+        boolean reached = true;
+        try {
+            method.response = httpClient.execute(method.request);
+            failed = LoadBalancer.isHostFailure(method.getStatusCode());
+            errored = method.getStatusCode() >= 500;
+        } catch (ConnectionPoolTimeoutException e) {
+            // The call never got as far as the host.
+            reached = false;
+            throw e;
+        } finally {
+            // A call aborted because the other one answered first says nothing about the host.
+            if (winner != null && winner.get() != null && winner.get() != method) {
+                reached = false;
+            }
+            long elapsed = System.nanoTime() - started;
+            host.finished(failed && reached, elapsed);
+            if (reached) {
+                host.record(errored, elapsed);
+            } else {
+                host.release();
+            }
+            if (winner != null && !failed) {
+                hedging.attempted(elapsed);
+            }
+        }
+    }
 
-        Enumeration headerNames = request.getHeaderNames();
-        while (headerNames.hasMoreElements()) {
+    /**
+     * Executes the method and, if it hasn't been answered within the hedging delay, a copy of it on a hedging
+     * thread, against another host when there is one. The call that answers first is returned and the other
+     * one is aborted.
+     */
+    private UpstreamCall hedge(final String verb, final String target, final LoadBalancer.Host host,
+                               final UpstreamCall method, final List<LoadBalancer.Host> tried) throws IOException {
+        hedging.requested();
+        // The copy is sent from a hedging thread, which mustn't touch the request; hedged verbs have no body,
+        // so the first call's headers are all it needs.
+        final Header[] headers = method.request.getAllHeaders();
+        long started = System.nanoTime();
+        final AtomicReference<UpstreamCall> winner = new AtomicReference<UpstreamCall>();
+        final AtomicReference<UpstreamCall> backup = new AtomicReference<UpstreamCall>();
+        // Completes with the copy if it won, or null if it lost, failed or was never sent.
+        final CompletableFuture<UpstreamCall> hedged = new CompletableFuture<UpstreamCall>();
 
-            String headerName = (String) headerNames.nextElement();
-            Enumeration headerValues = request.getHeaders(headerName);
-            while (headerValues.hasMoreElements()) {
+        ScheduledFuture<?> timer = null;
+        long delay = hedging.getDelayNanos();
+        if (delay != Long.MAX_VALUE) {
+            timer = hedging.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (winner.get() != null || !hedging.tryHedge()) {
+                        hedged.complete(null);
+                        return;
+                    }
+                    LoadBalancer.Host other = loadBalancer.choose(tried);
+                    UpstreamCall copy = null;
+                    try {
+                        copy = new UpstreamCall(createMethod(verb, (other != null ? other : host).getUrl() + target));
+                        copy.request.setHeaders(headers);
+                        backup.set(copy);
+                        // The first call may have won before it could see the copy to abort it.
+                        if (winner.get() != null) {
+                            hedged.complete(null);
+                            return;
+                        }
+                        call(other != null ? other : host, copy, winner);
+                        if (winner.compareAndSet(null, copy)) {
+                            method.abort();
+                            hedged.complete(copy);
+                            return;
+                        }
+                    } catch (IOException e) {
+                        // The first call is still the one to go by.
+                    } catch (RuntimeException e) {
+                        // Likewise.
+                    }
+                    if (copy != null) {
+                        copy.discard();
+                    }
+                    hedged.complete(null);
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
 
-                String headerValue = (String) headerValues.nextElement();
-                if (headerValue != null) {
-                    connection.addRequestProperty(headerName, headerValue);
+        IOException failure = null;
+        try {
+            call(host, method, winner);
+            if (winner.compareAndSet(null, method)) {
+                if (timer != null) {
+                    timer.cancel(false);
                 }
+                UpstreamCall copy = backup.get();
+                if (copy != null) {
+                    copy.abort();
+                }
+                hedging.answered(System.nanoTime() - started, false);
+                return method;
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        // The first call lost to the copy, or failed. Unless the copy was never sent, wait for how it does.
+        UpstreamCall copy = timer == null || timer.cancel(false) ? null : hedged.join();
+        if (copy == null) {
+            throw failure != null ? failure : new IOException("hedged call failed");
+        }
+        method.discard();
+        hedging.answered(System.nanoTime() - started, true);
+        return copy;
+    }
+
+    /**
+     * Waits for the call's batch to be answered. The leader holds the batch open until the window is over,
+     * then sends it.
+     *
+     * @return the call's sub-response, or null if it has to go upstream on its own.
+     */
+    private BufferedResponse batch(HttpServletRequest request, CompositeBatch.Call call) {
+        if (call.isLeader()) {
+            CompositeBatch.Batch batch = call.getBatch();
+            batch.await();
+            byte[] body = batch.close();
+            if (body != null) {
+                sendBatch(request, batch, body);
             }
         }
+        return await(call.getResponse(), batchWindow + followerTimeout(), CompositeBatch.TIMEOUTS);
     }
 
-    protected void copyResponseHeaders(HttpServletResponse response, HttpURLConnection connection) {
+    /**
+     * Sends a batch upstream as one Composite Batch call, with the leader's headers.
+     */
+    private void sendBatch(HttpServletRequest request, CompositeBatch.Batch batch, byte[] body) {
+        // Turned away, the calls go upstream on their own and are turned away one by one.
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            batch.complete(0, null);
+            return;
+        }
+        LoadBalancer.Host host = loadBalancer.choose(Collections.<LoadBalancer.Host>emptyList());
+        if (host == null) {
+            release();
+            batch.complete(0, null);
+            return;
+        }
 
-        Map<String, List<String>> headers  = connection.getHeaderFields();
-        for (String name : headers.keySet()) {
-            List<String> values  = headers.get(name);
+        HttpPost post = new HttpPost(host.getUrl() + batch.getPath());
+        UpstreamCall method = new UpstreamCall(post);
+        int status = 0;
+        byte[] answer = null;
+        try {
+            copyRequestHeaders(request, post);
+            if (compression != null) {
+                post.setHeader("Accept-Encoding", Compression.ACCEPT_ENCODING);
+            } else {
+                post.removeHeaders("Accept-Encoding");
+            }
+            post.setHeader("Content-Type", "application/json");
+            post.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+            call(host, method, null);
+            status = method.getStatusCode();
 
-            for (int i = 0; i < values.size(); i++) {
-                String value = values.get(i);
-                if (name == null || value == null) {
-                    continue;
+            InputStream in = method.getResponseBodyAsStream();
+            if (in != null) {
+                Header contentEncoding = method.getResponseHeader("Content-Encoding");
+                if (contentEncoding != null && compression != null) {
+                    in = compression.decode(contentEncoding.getValue(), in);
                 }
-                response.addHeader(name, value);
+                ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                bufferPool.copy(in, decoded);
+                answer = decoded.toByteArray();
             }
+        } catch (IOException e) {
+            // The calls go on their own.
+            method.abort();
+        } finally {
+            method.releaseConnection();
+            release();
+            batch.complete(status, answer);
+        }
+    }
+
+    /**
+     * Fetches a page of a query result ahead of the client, if the bulkhead and breaker have room for it.
+     *
+     * @return the page as the remote host sent it, or null if it wasn't fetched or came back larger than
+     * maxBytes.
+     */
+    private BufferedResponse prefetch(String target, List<String> headers, long maxBytes) throws IOException {
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            return null;
+        }
+        LoadBalancer.Host host = loadBalancer.choose(Collections.<LoadBalancer.Host>emptyList());
+        if (host == null) {
+            release();
+            return null;
+        }
+
+        HttpGet get = new HttpGet(host.getUrl() + target);
+        UpstreamCall method = new UpstreamCall(get);
+        try {
+            for (int i = 0; i < headers.size(); i += 2) {
+                get.addHeader(headers.get(i), headers.get(i + 1));
+            }
+            if (compression != null) {
+                get.setHeader("Accept-Encoding", Compression.ACCEPT_ENCODING);
+            }
+            call(host, method, null);
+            int status = method.getStatusCode();
+
+            BufferedResponse page = new BufferedResponse(status);
+            for (Header header : method.getResponseHeaders()) {
+                page.addHeader(header.getName(), header.getValue());
+            }
+            InputStream in = method.getResponseBodyAsStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (in != null && bufferPool.copy(in, body, maxBytes + 1) > maxBytes) {
+                method.abort();
+                return null;
+            }
+            page.setBody(body.toByteArray());
+            return page;
+        } catch (IOException e) {
+            method.abort();
+            throw e;
+        } finally {
+            method.releaseConnection();
+            release();
+        }
+    }
+
+    /**
+     * Lets the call go upstream, or answers it with a 503 if the bulkhead is full.
+     */
+    private boolean admit(HttpServletResponse response) throws IOException {
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            response.setHeader("Retry-After", "1");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "too many upstream calls in flight");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ends a call {@link #admit} let through.
+     */
+    private void release() {
+        if (bulkhead != null) {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Writes a response held in memory, in whichever coding the client accepts.
+     */
+    private void send(HttpServletRequest request, HttpServletResponse response, BufferedResponse buffered)
+            throws IOException {
+        if (pagePrefetch != null) {
+            pagePrefetch.follow(request, buffered);
+        }
+        if (responseTransform != null
+                && responseTransform.applies(request, buffered.getStatus(), buffered.getHeader("Content-Type"))) {
+            buffered = buffered.transform(request, responseTransform, compression);
+        }
+        (compression != null ? compression.apply(request, buffered, bufferSize) : buffered).writeTo(request, response,
+                headerPolicy);
+    }
+
+    /**
+     * How long a request waits for the leader of its flight or batch, in milliseconds: read_timeout when it is
+     * set, async_timeout otherwise.
+     */
+    private long followerTimeout() {
+        return readTimeout > 0 ? readTimeout : asyncTimeout;
+    }
+
+    /**
+     * Blocks until the leader of the flight or batch has the response, or the timeout is up.
+     *
+     * @param timeouts the counter of waits that timed out.
+     * @return the response, or null if this request has to go upstream itself.
+     */
+    private BufferedResponse await(CompletableFuture<BufferedResponse> shared, long timeoutMillis, String timeouts) {
+        try {
+            return shared.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // The leader is stuck; going upstream alone beats holding this thread as well.
+            metrics.increment(timeouts);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    protected HttpRequestBase createMethod(String verb, String remoteUrl) {
+        if (verb.equals("GET")) {
+            return new HttpGet(remoteUrl);
+        } else if (verb.equals("POST")) {
+            return new HttpPost(remoteUrl);
+        } else if (verb.equals("PUT")) {
+            return new HttpPut(remoteUrl);
+        } else if (verb.equals("PATCH")) {
+            return new HttpPatch(remoteUrl);
+        } else if (verb.equals("DELETE")) {
+            return new HttpDelete(remoteUrl);
+        } else if (verb.equals("HEAD")) {
+            return new HttpHead(remoteUrl);
+        } else if (verb.equals("OPTIONS")) {
+            return new HttpOptions(remoteUrl);
+        }
+        throw new IllegalArgumentException(String.format("Unsupported verb [%s]", verb));
+    }
+
+    /**
+     * Creates the stage JSON and other response bodies are rewritten in on their way to the client. By default
+     * this is a {@link JsonProjection} when projection_param is set, and nothing otherwise.
+     *
+     * @return the transform, or null to pass bodies through as they are.
+     */
+    protected ResponseTransform createResponseTransform() {
+        return projectionParam.length() > 0 ? new JsonProjection(projectionParam, metrics) : null;
+    }
+
+    /**
+     * Streams the request body upstream through a pooled buffer. Bodies without a content length are sent chunked.
+     */
+    protected HttpEntity createRequestEntity(HttpServletRequest request) throws IOException
+    {
+        return new StreamingRequestEntity(request.getInputStream(), request.getContentLengthLong(),
+                request.getContentType(), bufferPool);
+    }
+
+    /**
+     * Copies the request headers the {@link HeaderPolicy} passes on, and adds the proxy's own.
+     */
+    protected void copyRequestHeaders(HttpServletRequest request, final HttpRequest method) {
+        headerPolicy.copyRequestHeaders(request, new HeaderPolicy.Sink() {
+            @Override
+            public void add(String name, String value) {
+                method.addHeader(name, value);
+            }
+        });
+    }
+
+    /**
+     * Copies the response headers the {@link HeaderPolicy} passes on, leaving {@code Location} as it is.
+     */
+    protected void copyResponseHeaders(HttpServletResponse response, HttpResponse method) {
+        copyResponseHeaders(null, response, method, Compression.Plan.PASS, false);
+    }
+
+    /**
+     * Copies the response headers for a body sent according to the plan. When the coding of the response
+     * depends on the client's Accept-Encoding, the Vary header says so.
+     */
+    private void copyResponseHeaders(HttpServletRequest request, HttpServletResponse response, HttpResponse method,
+                                     Compression.Plan plan, boolean varies) {
+
+        Header connection = method.getFirstHeader("Connection");
+        HeaderPolicy.ResponseHeaders headers = headerPolicy.copyResponseHeaders(request,
+                connection != null ? connection.getValue() : null, response);
+        String vary = null;
+        for (Header header : method.getAllHeaders()) {
+            String name = header.getName();
+            String value = header.getValue();
+            if (name == null || value == null) {
+                continue;
+            }
+            if (name.equalsIgnoreCase("Content-Encoding")) {
+                value = Compression.contentEncoding(plan, value);
+            } else if (name.equalsIgnoreCase("ETag")) {
+                value = Compression.etag(plan, value);
+            } else if (varies && name.equalsIgnoreCase("Vary")) {
+                vary = vary == null ? value : vary + ", " + value;
+                continue;
+            }
+            headers.add(name, value);
+        }
+        headers.finish();
+        if (plan == Compression.Plan.GZIP || plan == Compression.Plan.DEFLATE) {
+            response.setHeader("Content-Encoding", Compression.contentEncoding(plan, null));
+        }
+        if (varies) {
+            response.setHeader("Vary", Compression.vary(vary));
         }
     }
 
@@ -255,4 +1220,136 @@ public class ProxyServlet extends HttpServlet {
         String value = getServletConfig().getInitParameter(name);
         return (value == null || value.trim().length() == 0) ? defaultValue : Boolean.valueOf(value);
     }
+
+    private double getConfigParam(String name, double defaultValue) {
+        String value = getServletConfig().getInitParameter(name);
+        return (value == null || value.trim().length() == 0) ? defaultValue : Double.valueOf(value);
+    }
+
+    /**
+     * A request to a remote host and, once it has been executed, the response.
+     */
+    static final class UpstreamCall {
+
+        final HttpRequestBase request;
+        CloseableHttpResponse response;
+
+        UpstreamCall(HttpRequestBase request) {
+            this.request = request;
+        }
+
+        int getStatusCode() {
+            return response.getStatusLine().getStatusCode();
+        }
+
+        Header getResponseHeader(String name) {
+            return response.getFirstHeader(name);
+        }
+
+        Header[] getResponseHeaders() {
+            return response.getAllHeaders();
+        }
+
+        /**
+         * @return the length of the body, or -1 if it isn't known up front.
+         */
+        long getResponseContentLength() {
+            if (response.getEntity() != null) {
+                return response.getEntity().getContentLength();
+            }
+            // A response to HEAD has no body, but still says how long it would be.
+            Header contentLength = response.getFirstHeader("Content-Length");
+            try {
+                return contentLength != null ? Long.parseLong(contentLength.getValue().trim()) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        InputStream getResponseBodyAsStream() throws IOException {
+            return response.getEntity() != null ? response.getEntity().getContent() : null;
+        }
+
+        /**
+         * Cuts the call off, closing its connection.
+         */
+        void abort() {
+            request.abort();
+        }
+
+        /**
+         * Cuts the call off and lets go of it, for a call that failed or whose answer isn't wanted. What is left
+         * of the body is never read: the connection is closed instead of going back to the pool.
+         */
+        void discard() {
+            abort();
+            releaseConnection();
+        }
+
+        /**
+         * Reads what is left of the body, so the connection goes back to the pool for the next request. Only
+         * meant for a body that was read through, or nearly; an aborted call's body isn't read.
+         */
+        void releaseConnection() {
+            if (response != null) {
+                if (!request.isAborted()) {
+                    try {
+                        EntityUtils.consume(response.getEntity());
+                    } catch (IOException e) {
+                        // The connection is closed instead.
+                    }
+                }
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    // Likewise.
+                }
+            }
+            request.releaseConnection();
+        }
+    }
+
+    /**
+     * Writes the servlet request body straight to the upstream connection, a pooled buffer-full at a time.
+     * The body can only be read once, so the entity is not repeatable.
+     */
+    static class StreamingRequestEntity extends AbstractHttpEntity {
+
+        private final InputStream body;
+        private final long contentLength;
+        private final BufferPool bufferPool;
+
+        StreamingRequestEntity(InputStream body, long contentLength, String contentType, BufferPool bufferPool) {
+            this.body = body;
+            this.contentLength = contentLength;
+            this.bufferPool = bufferPool;
+            setContentType(contentType);
+            setChunked(contentLength < 0);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return body;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            bufferPool.copy(body, out);
+        }
+
+        @Override
+        public long getContentLength() {
+            return contentLength;
+        }
+    }
 }
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket per caller in front of the {@link ProxyServlet}, so a single noisy org can't spend the API
+ * limits everyone shares. Each bucket refills at {@code rate} requests a second and holds at most
+ * {@code burst} of them, one second's worth unless set.
+ * <p>
+ * Callers are told apart by the OAuth token in the {@code Authorization} header. Requests without one share
+ * one bucket.
+ * <p>
+ * A bucket is a single {@link AtomicLong} holding the time at which it will next be full, the way the
+ * generic cell rate algorithm keeps it, and is updated with compare-and-set. Callers never wait on a lock,
+ * and callers in different buckets never touch the same memory. The map holds at most {@code maxKeys}
+ * callers: full buckets are dropped first, since forgetting them changes nothing, and if none are full the
+ * buckets that have been idle longest go.
+ */
+final class RateLimiter {
+
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    static final String REJECTED = "ratelimit.rejected";
+    static final String KEYS     = "ratelimit.keys";
+    static final String EVICTED  = "ratelimit.evicted";
+
+    private final long interval;
+    private final long tolerance;
+    private final int maxKeys;
+    private final ProxyMetrics metrics;
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+
+    RateLimiter(double rate, int burst, int maxKeys, ProxyMetrics metrics) {
+        this.interval = (long) (1000000000L / rate);
+        this.tolerance = interval * Math.max(1, burst > 0 ? burst : (int) Math.ceil(rate));
+        this.maxKeys = maxKeys;
+        this.metrics = metrics;
+        metrics.register(KEYS, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return buckets.size();
+            }
+        });
+    }
+
+    /**
+     * @return the caller the request is counted against.
+     */
+    static String key(HttpServletRequest request) {
+        return "token " + ResponseCache.scope(request);
+    }
+
+    /**
+     * Takes a token from the caller's bucket.
+     *
+     * @return 0 if the request may go ahead, or else how many seconds to wait before the bucket has a token.
+     */
+    long acquire(String key) {
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys) {
+                evict();
+            }
+            AtomicLong created = new AtomicLong(now);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+
+        while (true) {
+            long full = bucket.get();
+            long next = (full - now > 0 ? full : now) + interval;
+            if (next - now > tolerance) {
+                metrics.increment(REJECTED);
+                long wait = next - now - tolerance;
+                return Math.max(1, (wait + 999999999L) / 1000000000L);
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private synchronized void evict() {
+        if (buckets.size() < maxKeys) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue().get() - now <= 0) {
+                it.remove();
+            }
+        }
+        if (buckets.size() < maxKeys) {
+            return;
+        }
+
+        // A bucket that will be full soonest has been idle longest. A tenth of the map goes at once, so new
+        // callers don't each pay for a sort.
+        long[] fullAt = new long[buckets.size()];
+        int count = 0;
+        for (AtomicLong bucket : buckets.values()) {
+            if (count == fullAt.length) {
+                break;
+            }
+            fullAt[count++] = bucket.get() - now;
+        }
+        if (count == 0) {
+            return;
+        }
+        Arrays.sort(fullAt, 0, count);
+        int evicted = Math.min(count, count - maxKeys + Math.max(1, maxKeys / 10));
+        long cutoff = fullAt[evicted - 1];
+        for (Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue().get() - now <= cutoff) {
+                it.remove();
+                metrics.increment(EVICTED);
+            }
+        }
+    }
+}
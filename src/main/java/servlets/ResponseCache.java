@@ -0,0 +1,451 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import org.apache.http.client.utils.DateUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An in-memory HTTP cache for the GET responses the {@link ProxyServlet} proxies, so the describe and metadata
+ * resources canvas apps ask for again and again are served without a round trip.
+ * <p>
+ * Entries are scoped to the OAuth token of the request that fetched them: a response is only ever served to
+ * requests carrying the same {@code Authorization} header, and responses marked {@code private} are only
+ * kept when there was one. Within a scope entries are keyed by the remote URL and matched on the request
+ * headers named by the response's {@code Vary}. Requests that carry a {@code Cookie} bypass the cache, since
+ * a session cookie authenticates them as much as a token would, and responses that set a cookie are never
+ * kept.
+ * <p>
+ * Freshness follows {@code Cache-Control} ({@code s-maxage}, then {@code max-age}) and falls back to
+ * {@code Expires}. Responses with no freshness of their own are still kept when they carry an {@code ETag}
+ * or {@code Last-Modified}; they, like every entry past its freshness, are revalidated with a conditional
+ * request and served from the cache when the upstream answers 304. {@code no-store} is never kept, and
+ * {@code no-cache} on either side forces revalidation.
+ * <p>
+ * The cache is bounded by the bytes it holds and evicts least recently used entries first.
+ */
+final class ResponseCache {
+
+    static final String LOOKUPS     = "cache.lookups";
+    static final String HITS        = "cache.hits";
+    static final String REVALIDATED = "cache.revalidated";
+    static final String MISSES      = "cache.misses";
+    static final String STORES      = "cache.stores";
+    static final String EVICTIONS   = "cache.evictions";
+    static final String HIT_RATIO   = "cache.hit_ratio";
+    static final String BYTES       = "cache.bytes";
+    static final String ENTRIES     = "cache.entries";
+
+    /**
+     * The verbs that change the resource they are sent to.
+     */
+    static final Set<String> UNSAFE_VERBS = new TreeSet<String>(Arrays.asList("DELETE", "PATCH", "POST", "PUT"));
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final ProxyMetrics metrics;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    ResponseCache(long maxBytes, int maxEntryBytes, final ProxyMetrics metrics) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes);
+        this.metrics = metrics;
+        metrics.register(HIT_RATIO, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return metrics.ratio(HITS, LOOKUPS);
+            }
+        });
+        metrics.register(BYTES, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                synchronized (ResponseCache.this) {
+                    return bytes;
+                }
+            }
+        });
+        metrics.register(ENTRIES, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                synchronized (ResponseCache.this) {
+                    return entries.size();
+                }
+            }
+        });
+    }
+
+    /**
+     * The most bytes of body the proxy should buffer while trying to store a response.
+     */
+    int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * @return the key the request is cached under, or null if it bypasses the cache.
+     */
+    String key(String verb, HttpServletRequest request, String remoteUrl) {
+        if (!"GET".equals(verb) || request.getHeader("Range") != null || request.getHeader("Cookie") != null
+                || directive(request.getHeader("Cache-Control"), "no-store") != null) {
+            return null;
+        }
+        return scope(request) + ' ' + remoteUrl;
+    }
+
+    /**
+     * @return the entry the request can be answered from, fresh or stale, or null if there is none.
+     */
+    synchronized Entry get(String key, HttpServletRequest request) {
+        metrics.increment(LOOKUPS);
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.matches(request)) {
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return true if the entry may be served without asking the upstream.
+     */
+    boolean isFresh(Entry entry, HttpServletRequest request) {
+        String cacheControl = request.getHeader("Cache-Control");
+        if (directive(cacheControl, "no-cache") != null || "no-cache".equalsIgnoreCase(request.getHeader("Pragma"))) {
+            return false;
+        }
+        long age = System.currentTimeMillis() - entry.storedAt;
+        String maxAge = directive(cacheControl, "max-age");
+        if (maxAge != null && age >= seconds(maxAge, 0) * 1000L) {
+            return false;
+        }
+        return age < entry.freshFor;
+    }
+
+    /**
+     * Counts a fresh hit and returns what to send for it: the cached response, or a 304 when the request's own
+     * {@code If-None-Match} names the cached entity.
+     */
+    BufferedResponse hit(Entry entry, HttpServletRequest request) {
+        metrics.increment(HITS);
+        return entry.respondTo(request);
+    }
+
+    /**
+     * Stores the refreshed freshness of a revalidated entry and returns what to send for it.
+     *
+     * @param notModified the upstream's 304 response.
+     */
+    BufferedResponse revalidated(String key, Entry entry, BufferedResponse notModified, HttpServletRequest request) {
+        metrics.increment(HITS);
+        metrics.increment(REVALIDATED);
+        BufferedResponse merged = new BufferedResponse(entry.response.getStatus());
+        for (int i = 0; i < entry.response.getHeaderCount(); i++) {
+            String name = entry.response.getHeaderName(i);
+            if (notModified.getHeader(name) == null) {
+                merged.addHeader(name, entry.response.getHeaderValue(i));
+            }
+        }
+        for (int i = 0; i < notModified.getHeaderCount(); i++) {
+            merged.addHeader(notModified.getHeaderName(i), notModified.getHeaderValue(i));
+        }
+        merged.setBody(entry.response.getBody());
+        // The 304 may have changed the headers the entry was stored under, or set a cookie.
+        if (isStorable(merged, request)) {
+            Entry refreshed = create(merged, request);
+            put(key, refreshed);
+            return refreshed.respondTo(request);
+        }
+        remove(key);
+        return merged;
+    }
+
+    /**
+     * Counts a miss. Misses are everything that had to come from the upstream in full.
+     */
+    void miss() {
+        metrics.increment(MISSES);
+    }
+
+    /**
+     * @return true if the response, judged by its status and headers alone, may be stored.
+     */
+    boolean isStorable(BufferedResponse response, HttpServletRequest request) {
+        if (response.getStatus() != 200 || response.getHeader("Set-Cookie") != null) {
+            return false;
+        }
+        String cacheControl = response.getHeaders("Cache-Control");
+        if (directive(cacheControl, "no-store") != null) {
+            return false;
+        }
+        if (directive(cacheControl, "private") != null && request.getHeader("Authorization") == null) {
+            return false;
+        }
+        String vary = response.getHeaders("Vary");
+        if (vary != null && vary.contains("*")) {
+            return false;
+        }
+        return freshness(response) > 0 || response.getHeader("ETag") != null
+                || response.getHeader("Last-Modified") != null;
+    }
+
+    /**
+     * Stores a complete response if it is storable and fits, and otherwise drops whatever was stored for
+     * the key before.
+     */
+    void store(String key, BufferedResponse response, HttpServletRequest request) {
+        if (!isStorable(response, request) || response.getBody().length > maxEntryBytes) {
+            remove(key);
+            return;
+        }
+        Entry entry = create(response, request);
+        if (entry != null) {
+            put(key, entry);
+            metrics.increment(STORES);
+        }
+    }
+
+    /**
+     * @return the conditional request headers that revalidate the entry, as name value pairs.
+     */
+    String[] validators(Entry entry) {
+        List<String> validators = new ArrayList<String>(4);
+        String etag = entry.response.getHeader("ETag");
+        if (etag != null) {
+            validators.add("If-None-Match");
+            validators.add(etag);
+        }
+        String lastModified = entry.response.getHeader("Last-Modified");
+        if (lastModified != null) {
+            validators.add("If-Modified-Since");
+            validators.add(lastModified);
+        }
+        return validators.toArray(new String[validators.size()]);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private Entry create(BufferedResponse response, HttpServletRequest request) {
+        String vary = response.getHeaders("Vary");
+        String[] varyNames = vary == null ? new String[0] : vary.split("\\s*,\\s*");
+        String[] varyValues = new String[varyNames.length];
+        for (int i = 0; i < varyNames.length; i++) {
+            varyValues[i] = joined(request, varyNames[i]);
+        }
+        return new Entry(response, freshness(response), varyNames, varyValues);
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += entry.size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            bytes -= evicted.size;
+            metrics.increment(EVICTIONS);
+        }
+    }
+
+    /**
+     * Drops the entry a request that changes the resource made out of date. Only the requester's own scope
+     * is touched; copies other tokens hold expire on their own.
+     */
+    void invalidate(HttpServletRequest request, String remoteUrl) {
+        remove(scope(request) + ' ' + remoteUrl);
+    }
+
+    synchronized void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.size;
+        }
+    }
+
+    /**
+     * @return how long the response stays fresh in milliseconds, from when it was received.
+     */
+    private static long freshness(BufferedResponse response) {
+        String cacheControl = response.getHeaders("Cache-Control");
+        if (directive(cacheControl, "no-cache") != null) {
+            return 0;
+        }
+        long age = seconds(response.getHeader("Age"), 0) * 1000L;
+        String maxAge = directive(cacheControl, "s-maxage");
+        if (maxAge == null) {
+            maxAge = directive(cacheControl, "max-age");
+        }
+        if (maxAge != null) {
+            return Math.max(0, seconds(maxAge, 0) * 1000L - age);
+        }
+        String expires = response.getHeader("Expires");
+        if (expires != null) {
+            String date = response.getHeader("Date");
+            Date now = date == null ? new Date() : DateUtils.parseDate(date);
+            Date expiresAt = DateUtils.parseDate(expires);
+            // An invalid Expires means already expired.
+            return now == null || expiresAt == null ? 0 : Math.max(0, expiresAt.getTime() - now.getTime() - age);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the value of the directive in a Cache-Control header, "" if it has none, or null if the
+     * directive isn't there.
+     */
+    static String directive(String cacheControl, String name) {
+        if (cacheControl == null) {
+            return null;
+        }
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            int equals = directive.indexOf('=');
+            String directiveName = equals < 0 ? directive : directive.substring(0, equals).trim();
+            if (directiveName.equalsIgnoreCase(name)) {
+                return equals < 0 ? "" : unquote(directive.substring(equals + 1).trim());
+            }
+        }
+        return null;
+    }
+
+    private static String unquote(String value) {
+        return value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"'
+                ? value.substring(1, value.length() - 1) : value;
+    }
+
+    private static long seconds(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static String joined(HttpServletRequest request, String name) {
+        Enumeration<String> values = request.getHeaders(name);
+        if (values == null || !values.hasMoreElements()) {
+            return null;
+        }
+        StringBuilder joined = new StringBuilder(values.nextElement());
+        while (values.hasMoreElements()) {
+            joined.append(", ").append(values.nextElement());
+        }
+        return joined.toString();
+    }
+
+    /**
+     * @return a digest of the request's Authorization header, or "-" when there is none. The token itself is
+     * never kept.
+     */
+    static String scope(HttpServletRequest request) {
+        String authorization = request.getHeader("Authorization");
+        if (authorization == null) {
+            return "-";
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(authorization.getBytes(StandardCharsets.UTF_8));
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A stored response and what it was stored for.
+     */
+    static final class Entry {
+
+        private final BufferedResponse response;
+        private final long storedAt = System.currentTimeMillis();
+        private final long freshFor;
+        private final String[] varyNames;
+        private final String[] varyValues;
+        private final long size;
+
+        private Entry(BufferedResponse response, long freshFor, String[] varyNames, String[] varyValues) {
+            this.response = response;
+            this.freshFor = freshFor;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            this.size = response.size();
+        }
+
+        private boolean matches(HttpServletRequest request) {
+            for (int i = 0; i < varyNames.length; i++) {
+                String value = joined(request, varyNames[i]);
+                if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private BufferedResponse respondTo(HttpServletRequest request) {
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            String etag = response.getHeader("ETag");
+            if (ifNoneMatch == null || etag == null || !(ifNoneMatch.equals("*") || ifNoneMatch.contains(etag))) {
+                return response;
+            }
+            BufferedResponse notModified = new BufferedResponse(304);
+            for (String name : new String[] {"Cache-Control", "Date", "ETag", "Expires", "Vary"}) {
+                String value = response.getHeader(name);
+                if (value != null) {
+                    notModified.addHeader(name, value);
+                }
+            }
+            return notModified;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package servlets;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collapses identical GET and HEAD requests that arrive while one of them is already on its way upstream.
+ * The first request leads and goes upstream; the ones that join it while it is in flight wait for its
+ * response and are answered with a copy. A page full of canvas instances asking for the same resource at
+ * once then costs one upstream call.
+ * <p>
+ * Requests are identical when they share the verb, the remote URL with its query, the {@code Authorization}
+ * header and the {@code Accept} and {@code Accept-Encoding} headers that shape the response. Conditional and
+ * range requests are never collapsed, since their answers depend on what the client already holds, and nor are
+ * requests with a {@code Cookie}, whose answers may belong to one session and set cookies for it. When the
+ * leader's response is too large to hand out, or the leader fails, the followers go upstream themselves. On the
+ * blocking path they also do so once they have waited longer than the proxy's read or async timeout.
+ */
+final class SingleFlight {
+
+    static final String LEADERS   = "coalesce.leaders";
+    static final String COLLAPSED = "coalesce.collapsed";
+    static final String UNSHARED  = "coalesce.unshared";
+    static final String IN_FLIGHT = "coalesce.in_flight";
+    static final String TIMEOUTS  = "coalesce.timeouts";
+
+    private final int maxResponseBytes;
+    private final ProxyMetrics metrics;
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    SingleFlight(int maxResponseBytes, ProxyMetrics metrics) {
+        this.maxResponseBytes = maxResponseBytes;
+        this.metrics = metrics;
+        metrics.register(IN_FLIGHT, new ProxyMetrics.Gauge() {
+            @Override
+            public double value() {
+                return flights.size();
+            }
+        });
+    }
+
+    /**
+     * The largest response body a leader buffers to hand to its followers.
+     */
+    int getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
+    /**
+     * @return the key identical requests share, or null if the request can't be collapsed.
+     */
+    String key(String verb, HttpServletRequest request, String remoteUrl) {
+        if (!"GET".equals(verb) && !"HEAD".equals(verb)) {
+            return null;
+        }
+        if (request.getHeader("If-None-Match") != null || request.getHeader("If-Modified-Since") != null
+                || request.getHeader("Range") != null || request.getHeader("Cookie") != null) {
+            return null;
+        }
+        return verb + ' ' + ResponseCache.scope(request) + ' ' + remoteUrl
+                + '\n' + request.getHeader("Accept") + '\n' + request.getHeader("Accept-Encoding");
+    }
+
+    /**
+     * Joins the flight for the key, starting it if there is none.
+     *
+     * @return a flight to lead, or a flight to follow when an identical request is already in flight.
+     */
+    Flight join(String key) {
+        Flight flight = new Flight(this, key, new CompletableFuture<BufferedResponse>(), true);
+        Flight leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            leader.followers.incrementAndGet();
+            return new Flight(this, key, leader.response, false);
+        }
+        metrics.increment(LEADERS);
+        return flight;
+    }
+
+    /**
+     * One upstream call and everyone waiting for it.
+     */
+    static final class Flight {
+
+        private final SingleFlight owner;
+        private final String key;
+        private final CompletableFuture<BufferedResponse> response;
+        private final boolean leader;
+        private final AtomicInteger followers = new AtomicInteger();
+
+        private Flight(SingleFlight owner, String key, CompletableFuture<BufferedResponse> response, boolean leader) {
+            this.owner = owner;
+            this.key = key;
+            this.response = response;
+            this.leader = leader;
+        }
+
+        boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Hands the leader's response to the followers. Requests arriving from now on start a new flight.
+         *
+         * @param shared the complete response, or null to send the followers upstream themselves. A response
+         * that sets a cookie is the leader's alone, and is never handed out.
+         */
+        void complete(BufferedResponse shared) {
+            if (shared != null && shared.getHeader("Set-Cookie") != null) {
+                shared = null;
+            }
+            if (leader && !response.isDone()) {
+                owner.flights.remove(key, this);
+                response.complete(shared);
+                owner.metrics.add(shared != null ? COLLAPSED : UNSHARED, followers.get());
+            }
+        }
+
+        /**
+         * @return the future the followers wait on; it completes with null when they must go upstream.
+         */
+        CompletableFuture<BufferedResponse> getResponse() {
+            return response;
+        }
+    }
+}